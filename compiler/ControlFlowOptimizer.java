@@ -0,0 +1,123 @@
+package compiler;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+// 控制流优化: 把跳到 JMP 的跳转直接指向最终目标, 删除从入口出发执行不到的代码
+// (包括从未被调用的过程和各个分程序开头被跳过的 JMP) 以及跳到下一条指令的 JMP, 然后压缩代码并修正跳转地址
+public class ControlFlowOptimizer implements Pass {
+    private int threaded, removed, procedures;
+
+    public ControlFlowOptimizer() {
+    }
+
+    // 返回删除的指令条数
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int[] code = interpreter.code;
+        int length = interpreter.arrayPtr;
+        Procedures analysis;
+        try {
+            analysis = Procedures.analyze(interpreter);
+        } catch (IllegalStateException error) {
+            // 代码结构无法识别时不做修改
+            return 0;
+        }
+
+        // 跳转链: 目标是 JMP 时改为 JMP 的目标. CLI 的目标紧跟在过程入口的 INT 之后, 需要保持不变
+        for (int i = 0; i < length; i++) {
+            int op = Opcode.op(code[i * Opcode.WIDTH]);
+            if (Opcode.isJump(op) && op != Opcode.CLI) {
+                int target = code[i * Opcode.WIDTH + 1];
+                int end = analysis.follow(target);
+                if (end != target) {
+                    code[i * Opcode.WIDTH + 1] = end;
+                    threaded++;
+                }
+            }
+        }
+
+        // 从入口出发标记能执行到的指令
+        BitSet live = new BitSet(length);
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            if (i >= length || live.get(i)) {
+                continue;
+            }
+            live.set(i);
+            int op = Opcode.op(code[i * Opcode.WIDTH]);
+            if (Opcode.isJump(op)) {
+                work.push(code[i * Opcode.WIDTH + 1]);
+            }
+            if (op != Opcode.JMP && !isReturn(code, i)) {
+                work.push(i + 1);
+            }
+        }
+        // 过程内的代码可能因为死循环而执行不到结尾, 但过程的边界要保留给后续的分析使用
+        for (Procedures.Procedure procedure : analysis) {
+            if (live.get(procedure.entry)) {
+                live.set(procedure.end);
+            }
+        }
+        // 每个过程 (包括从未被调用, 不在分析结果中的过程) 都以一条 INT 开始
+        for (int i = 0; i < length; i++) {
+            if (!live.get(i) && Opcode.op(code[i * Opcode.WIDTH]) == Opcode.INT) {
+                procedures++;
+            }
+        }
+
+        // 删除跳到下一条保留指令的 JMP, 地址 0 的 JMP 是程序入口, 总是保留
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = live.nextSetBit(1); i >= 0; i = live.nextSetBit(i + 1)) {
+                if (Opcode.op(code[i * Opcode.WIDTH]) == Opcode.JMP
+                        && code[i * Opcode.WIDTH + 1] == live.nextSetBit(i + 1)) {
+                    live.clear(i);
+                    changed = true;
+                }
+            }
+        }
+
+        // 压缩, 被删除的指令映射到其后第一条保留的指令
+        int[] map = new int[length + 1];
+        int[] result = new int[code.length];
+        int[] lines = new int[code.length / Opcode.WIDTH];
+        int ptr = 0;
+        for (int i = 0; i < length; i++) {
+            map[i] = ptr;
+            if (live.get(i)) {
+                result[ptr * Opcode.WIDTH] = code[i * Opcode.WIDTH];
+                result[ptr * Opcode.WIDTH + 1] = code[i * Opcode.WIDTH + 1];
+                lines[ptr] = interpreter.getLine(i);
+                ptr++;
+            }
+        }
+        map[length] = ptr;
+        for (int i = 0; i < ptr; i++) {
+            if (Opcode.isJump(Opcode.op(result[i * Opcode.WIDTH]))) {
+                result[i * Opcode.WIDTH + 1] = map[result[i * Opcode.WIDTH + 1]];
+            }
+        }
+        interpreter.setCode(result, lines, ptr);
+        removed += length - ptr;
+        return length - ptr;
+    }
+
+    private static boolean isReturn(int[] code, int index) {
+        return Opcode.op(code[index * Opcode.WIDTH]) == Opcode.OPR && code[index * Opcode.WIDTH + 1] == 0;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("control flow: %d jumps threaded, %d instructions removed, %d procedures removed",
+                threaded, removed, procedures);
+    }
+}
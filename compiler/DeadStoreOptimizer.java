@@ -0,0 +1,153 @@
+package compiler;
+
+import java.util.*;
+
+// 死存储消除: 对每个过程做活跃变量分析, 写入本层变量后, 在被再次写入或过程返回前都不会被读取的存储是死的.
+// 死的 STO/STG 连同计算所存的值的纯表达式一起删除, 死的 INC/STL 直接删除, RED 会消耗输入, 总是保留.
+// 内层过程能通过层次差访问外层栈帧, 被内层过程访问的单元不参与分析
+public class DeadStoreOptimizer implements Pass {
+    // 删除一个存储后, 表达式中读取的变量的存储也可能变成死的
+    private static final int ROUNDS = 4;
+    private int stores;
+
+    public DeadStoreOptimizer() {
+    }
+
+    // 返回删除的存储个数
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int total = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            int count = eliminate(interpreter);
+            if (count == 0) {
+                break;
+            }
+            total += count;
+        }
+        stores += total;
+        return total;
+    }
+
+    private int eliminate(Interpreter interpreter) {
+        int[] code = interpreter.code;
+        int length = interpreter.arrayPtr;
+        Procedures procedures;
+        try {
+            procedures = Procedures.analyze(interpreter);
+        } catch (IllegalStateException error) {
+            return 0;
+        }
+        BitSet targets = new BitSet(length + 1);
+        for (int i = 0; i < length; i++) {
+            if (Opcode.isJump(Opcode.op(code[i * Opcode.WIDTH]))) {
+                targets.set(code[i * Opcode.WIDTH + 1]);
+            }
+        }
+
+        BitSet dead = new BitSet(length);
+        int count = 0;
+        for (Procedures.Procedure procedure : procedures) {
+            BitSet escaping = Liveness.escaping(code, procedures, procedure);
+            Liveness liveness = new Liveness(code, procedure);
+            for (int i = procedure.entry + 1; i < procedure.end; i++) {
+                int slot = Liveness.access(code, i, procedure, true);
+                if (slot < 0 || escaping.get(slot) || liveness.liveOut(i).get(slot)) {
+                    continue;
+                }
+                int op = Opcode.op(code[i * Opcode.WIDTH]);
+                if (op == Opcode.INC || op == Opcode.STL) {
+                    dead.set(i);
+                    count++;
+                } else if (op == Opcode.STO || op == Opcode.STG) {
+                    int start = expression(code, procedure, i, targets);
+                    if (start >= 0) {
+                        dead.set(start, i + 1);
+                        count++;
+                    }
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        // 压缩, 被删除的指令映射到其后第一条保留的指令
+        int[] map = new int[length + 1];
+        int[] result = new int[code.length];
+        int[] lines = new int[code.length / Opcode.WIDTH];
+        int ptr = 0;
+        for (int i = 0; i < length; i++) {
+            map[i] = ptr;
+            if (!dead.get(i)) {
+                result[ptr * Opcode.WIDTH] = code[i * Opcode.WIDTH];
+                result[ptr * Opcode.WIDTH + 1] = code[i * Opcode.WIDTH + 1];
+                lines[ptr] = interpreter.getLine(i);
+                ptr++;
+            }
+        }
+        map[length] = ptr;
+        for (int i = 0; i < ptr; i++) {
+            if (Opcode.isJump(Opcode.op(result[i * Opcode.WIDTH]))) {
+                result[i * Opcode.WIDTH + 1] = map[result[i * Opcode.WIDTH + 1]];
+            }
+        }
+        interpreter.setCode(result, lines, ptr);
+        return count;
+    }
+
+    // 计算存储 index 所存的值的纯表达式的起始地址, 表达式内部不能是跳转目标; 找不到时返回 -1.
+    // 除数不是非零常数的除法可能出错, 不能删除
+    private static int expression(int[] code, Procedures.Procedure procedure, int index, BitSet targets) {
+        int needed = 1;
+        for (int i = index - 1; i > procedure.entry; i--) {
+            if (targets.get(i + 1)) {
+                return -1;
+            }
+            int word = code[i * Opcode.WIDTH];
+            int argument = code[i * Opcode.WIDTH + 1];
+            switch (Opcode.op(word)) {
+                case Opcode.LIT:
+                case Opcode.LOD:
+                case Opcode.LDG:
+                    needed--;
+                    break;
+                case Opcode.OPR:
+                    if (argument == 5 && !(Opcode.op(code[(i - 1) * Opcode.WIDTH]) == Opcode.LIT
+                            && code[(i - 1) * Opcode.WIDTH + 1] != 0)) {
+                        return -1;
+                    }
+                    if (argument >= 2 && argument <= 5 || argument >= 8 && argument <= 14) {
+                        needed++;
+                    } else if (argument != 1 && argument != 6) {
+                        return -1;
+                    }
+                    break;
+                case Opcode.LDO:
+                    if (Opcode.extra(word) == 5) {
+                        return -1;
+                    }
+                    break;
+                case Opcode.LTO:
+                    if (Opcode.level(word) == 5 && argument == 0) {
+                        return -1;
+                    }
+                    break;
+                default:
+                    return -1;
+            }
+            if (needed == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getStores() {
+        return stores;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("dead stores: %d removed", stores);
+    }
+}
@@ -0,0 +1,349 @@
+package compiler;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+
+// 一次程序运行的全部状态. 解释循环执行时把这些状态放在局部变量中,
+// 用完指令预算后写回, 之后可以从中断处继续执行
+public class ExecutionContext {
+    private final int[] code;
+    private final int headroom, limit;
+    private final IntReader in;
+    private final IntWriter out;
+    private int[] runtimeStack;
+    private int pc, bp, sp;
+    // display[k] 为第 k 层当前的栈帧基址, lev 为正在执行的过程所在层次,
+    // 每次调用把被覆盖的 display 项和调用者的层次压入 saved, 返回时恢复
+    private int[] display, saved;
+    private int lev, csp;
+    private boolean finished;
+    // 已执行的指令条数
+    private long steps;
+    // 分层执行时统计调用和回边并切换到编译后的代码, 为 null 时只解释执行
+    private final TieredCompiler tiering;
+    private JitRuntime runtime;
+
+    public ExecutionContext(Program program, IntReader in, IntWriter out) {
+        this(program, in, out, null);
+    }
+
+    // 编译后的代码不计入已执行的指令条数, 分层执行的上下文不适合按指令预算分时执行
+    public ExecutionContext(Program program, IntReader in, IntWriter out, TieredCompiler tiering) {
+        this.code = program.code();
+        this.headroom = program.headroom();
+        this.limit = program.getStackLimit();
+        this.in = in;
+        this.out = out;
+        this.runtimeStack = new int[program.initialStack()];
+        this.pc = 0;
+        this.bp = 0;
+        this.sp = -1;
+        this.display = new int[TokenTable.LEVEL_MAX + 1];
+        this.saved = new int[Interpreter.savedSize(runtimeStack.length)];
+        this.lev = 0;
+        this.csp = 2;
+        this.tiering = tiering;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    // 下一条要执行的指令
+    int pc() {
+        return pc;
+    }
+
+    int sp() {
+        return sp;
+    }
+
+    // 放弃执行, 写出已经产生的输出
+    public void stop() {
+        finished = true;
+        out.flush();
+    }
+
+    // 最多执行 maxInstructions 条指令, 返回程序是否已经结束. 程序结束或出错时写出缓冲的输出
+    public boolean run(long maxInstructions) {
+        if (finished) {
+            return true;
+        }
+        int[] runtimeStack = this.runtimeStack, code = this.code, display = this.display, saved = this.saved;
+        int headroom = this.headroom, limit = this.limit;
+        int pc = this.pc, bp = this.bp, sp = this.sp, lev = this.lev, csp = this.csp;
+        int word, argument;
+        long count = 0;
+        TieredCompiler tiering = this.tiering;
+        // 要进入的编译后的方法和它使用的栈帧基址
+        MethodHandle compiled = null;
+        int base = 0;
+        try {
+            while (count < maxInstructions) {
+                word = code[pc * Opcode.WIDTH];
+                argument = code[pc * Opcode.WIDTH + 1];
+                pc++;
+                count++;
+                tier:
+                {
+                    switch (Opcode.op(word)) {
+                        case Opcode.LIT:
+                            // 加载某个数值
+                            ++sp;
+                            runtimeStack[sp] = argument;
+                            break;
+                        case Opcode.LOD:
+                            // 加载某个标识符对应的值
+                            ++sp;
+                            runtimeStack[sp] = runtimeStack[display[lev - Opcode.level(word)] + argument];
+                            break;
+                        case Opcode.STO:
+                            // 保存某个标识符
+                            runtimeStack[display[lev - Opcode.level(word)] + argument] = runtimeStack[sp];
+                            sp--;
+                            break;
+                        case Opcode.CAL:
+                            if (tiering != null && (compiled = tiering.call(argument)) != null) {
+                                base = sp + 1;
+                                break tier;
+                            }
+                            runtimeStack[sp + 1] = display[lev - Opcode.level(word)];
+                            runtimeStack[sp + 2] = bp;
+                            runtimeStack[sp + 3] = pc;
+                            bp = sp + 1;
+                            saved[csp++] = display[lev - Opcode.level(word) + 1];
+                            saved[csp++] = lev;
+                            lev = lev - Opcode.level(word) + 1;
+                            display[lev] = bp;
+                            pc = argument;
+                            break;
+                        case Opcode.TCL: {
+                            // 先像 OPR 0 那样撤销当前过程对 display 的修改, 再在同一个栈帧上进入被调过程,
+                            // 动态链和返回地址保持不变. 层次差至少为 1, 静态链不会指向被复用的栈帧.
+                            // 被调过程已经编译时按普通调用执行, 返回后接着执行的就是当前过程的返回指令
+                            if (tiering != null && (compiled = tiering.call(argument)) != null) {
+                                base = sp + 1;
+                                break tier;
+                            }
+                            int callee = lev - Opcode.level(word) + 1;
+                            runtimeStack[bp] = display[lev - Opcode.level(word)];
+                            display[lev] = saved[csp - 2];
+                            saved[csp - 2] = display[callee];
+                            display[callee] = bp;
+                            lev = callee;
+                            sp = bp - 1;
+                            pc = argument;
+                            break;
+                        }
+                        case Opcode.INT:
+                            sp += argument;
+                            if (sp + headroom >= runtimeStack.length) {
+                                runtimeStack = Interpreter.grow(runtimeStack, sp + headroom + 1, limit);
+                                saved = Arrays.copyOf(saved, Interpreter.savedSize(runtimeStack.length));
+                            }
+                            break;
+                        case Opcode.JMP:
+                            if (argument < pc && tiering != null && (compiled = tiering.loop(argument, sp - bp + 1)) != null) {
+                                base = bp;
+                                pc = tiering.exit(argument);
+                                break tier;
+                            }
+                            pc = argument;
+                            break;
+                        case Opcode.JPC:
+                            sp--;
+                            if (runtimeStack[sp + 1] == 0) {
+                                if (argument < pc && tiering != null && (compiled = tiering.loop(argument, sp - bp + 1)) != null) {
+                                    base = bp;
+                                    pc = tiering.exit(argument);
+                                    break tier;
+                                }
+                                pc = argument;
+                            }
+                            break;
+                        case Opcode.OPR:
+                            switch (argument) {
+                                case 0:
+                                    sp = bp - 1;
+                                    bp = runtimeStack[sp + 2];
+                                    pc = runtimeStack[sp + 3];
+                                    display[lev] = saved[csp - 2];
+                                    lev = saved[csp - 1];
+                                    csp -= 2;
+                                    break;
+                                case 1:
+                                    runtimeStack[sp] = -runtimeStack[sp];
+                                    break;
+                                case 2:
+                                    runtimeStack[sp - 1] += runtimeStack[sp];
+                                    sp--;
+                                    break;
+                                case 3:
+                                    runtimeStack[sp - 1] -= runtimeStack[sp];
+                                    sp--;
+                                    break;
+                                case 4:
+                                    runtimeStack[sp - 1] *= runtimeStack[sp];
+                                    sp--;
+                                    break;
+                                case 5:
+                                    runtimeStack[sp - 1] /= runtimeStack[sp];
+                                    sp--;
+                                    break;
+                                case 6:
+                                    runtimeStack[sp] &= 1;
+                                    break;
+                                case 8:
+                                    runtimeStack[sp - 1] = runtimeStack[sp - 1] == runtimeStack[sp] ? 1 : 0;
+                                    sp--;
+                                    break;
+                                case 9:
+                                    runtimeStack[sp - 1] = runtimeStack[sp - 1] != runtimeStack[sp] ? 1 : 0;
+                                    sp--;
+                                    break;
+                                case 10:
+                                    runtimeStack[sp - 1] = runtimeStack[sp - 1] < runtimeStack[sp] ? 1 : 0;
+                                    sp--;
+                                    break;
+                                case 11:
+                                    runtimeStack[sp - 1] = runtimeStack[sp - 1] <= runtimeStack[sp] ? 1 : 0;
+                                    sp--;
+                                    break;
+                                case 12:
+                                    runtimeStack[sp - 1] = runtimeStack[sp - 1] > runtimeStack[sp] ? 1 : 0;
+                                    sp--;
+                                    break;
+                                case 13:
+                                    runtimeStack[sp - 1] = runtimeStack[sp - 1] >= runtimeStack[sp] ? 1 : 0;
+                                    sp--;
+                                    break;
+                                case 14:
+                                    runtimeStack[sp - 1] <<= runtimeStack[sp];
+                                    sp--;
+                                    break;
+                            }
+                            break;
+                        case Opcode.WRT:
+                            out.write(runtimeStack[sp]);
+                            sp--;
+                            break;
+                        case Opcode.RED:
+                            sp++;
+                            runtimeStack[sp] = in.nextInt();
+                            runtimeStack[display[lev - Opcode.level(word)] + argument] = runtimeStack[sp];
+                            sp--;
+                            break;
+                        case Opcode.INC:
+                            runtimeStack[display[lev - Opcode.level(word)] + Opcode.extra(word)] += argument;
+                            break;
+                        case Opcode.STL:
+                            runtimeStack[display[lev - Opcode.level(word)] + Opcode.extra(word)] = argument;
+                            break;
+                        case Opcode.LDO:
+                            runtimeStack[sp] = Interpreter.operate(Opcode.extra(word), runtimeStack[sp],
+                                    runtimeStack[display[lev - Opcode.level(word)] + argument]);
+                            break;
+                        case Opcode.LTO:
+                            runtimeStack[sp] = Interpreter.operate(Opcode.level(word), runtimeStack[sp], argument);
+                            break;
+                        case Opcode.JNC:
+                            if (Opcode.level(word) == 6) {
+                                // odd 是一元运算
+                                sp--;
+                                if ((runtimeStack[sp + 1] & 1) != 0) {
+                                    break;
+                                }
+                            } else {
+                                sp -= 2;
+                                if (Interpreter.operate(Opcode.level(word), runtimeStack[sp + 1], runtimeStack[sp + 2]) != 0) {
+                                    break;
+                                }
+                            }
+                            if (argument < pc && tiering != null && (compiled = tiering.loop(argument, sp - bp + 1)) != null) {
+                                base = bp;
+                                pc = tiering.exit(argument);
+                                break tier;
+                            }
+                            pc = argument;
+                            break;
+                        case Opcode.JLC:
+                            sp--;
+                            if (Interpreter.operate(Opcode.level(word), runtimeStack[sp + 1], Opcode.extra(word)) != 0) {
+                                break;
+                            }
+                            if (argument < pc && tiering != null && (compiled = tiering.loop(argument, sp - bp + 1)) != null) {
+                                base = bp;
+                                pc = tiering.exit(argument);
+                                break tier;
+                            }
+                            pc = argument;
+                            break;
+                        case Opcode.CLI:
+                            if (tiering != null && (compiled = tiering.call(argument - 1)) != null) {
+                                base = sp + 1;
+                                break tier;
+                            }
+                            runtimeStack[sp + 1] = display[lev - Opcode.level(word)];
+                            runtimeStack[sp + 2] = bp;
+                            runtimeStack[sp + 3] = pc;
+                            bp = sp + 1;
+                            saved[csp++] = display[lev - Opcode.level(word) + 1];
+                            saved[csp++] = lev;
+                            lev = lev - Opcode.level(word) + 1;
+                            display[lev] = bp;
+                            sp += Opcode.extra(word);
+                            if (sp + headroom >= runtimeStack.length) {
+                                runtimeStack = Interpreter.grow(runtimeStack, sp + headroom + 1, limit);
+                                saved = Arrays.copyOf(saved, Interpreter.savedSize(runtimeStack.length));
+                            }
+                            pc = argument;
+                            break;
+                        case Opcode.LDG:
+                            // 主程序的栈帧基址总是 0
+                            ++sp;
+                            runtimeStack[sp] = runtimeStack[argument];
+                            break;
+                        case Opcode.STG:
+                            runtimeStack[argument] = runtimeStack[sp];
+                            sp--;
+                            break;
+                    }
+                    if (pc == 0) {
+                        finished = true;
+                        break;
+                    }
+                    continue;
+                }
+                // 进入编译后的代码, 它返回时被调过程 (或从循环头进入的当前过程) 已经执行完毕
+                if (runtime == null) {
+                    runtime = new JitRuntime(display, limit, in, out);
+                }
+                runtimeStack = TieredCompiler.invoke(compiled, runtime, runtimeStack, base);
+                if (saved.length < Interpreter.savedSize(runtimeStack.length)) {
+                    saved = Arrays.copyOf(saved, Interpreter.savedSize(runtimeStack.length));
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            finished = true;
+            out.flush();
+            throw e;
+        } finally {
+            this.runtimeStack = runtimeStack;
+            this.saved = saved;
+            this.pc = pc;
+            this.bp = bp;
+            this.sp = sp;
+            this.lev = lev;
+            this.csp = csp;
+            steps += count;
+        }
+        if (finished) {
+            out.flush();
+        }
+        return finished;
+    }
+}
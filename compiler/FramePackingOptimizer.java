@@ -0,0 +1,122 @@
+package compiler;
+
+import java.util.*;
+
+// 栈帧压缩: 按活跃变量分析的结果, 让活跃范围互不重叠的变量和临时单元共用同一个单元, 缩小 INT 分配的栈帧.
+// 被内层过程访问的单元, 以及在写入之前就可能被读取的单元保持原来的地址, 其余单元不会占用这些地址
+public class FramePackingOptimizer implements Pass {
+    private int slots, procedures;
+
+    public FramePackingOptimizer() {
+    }
+
+    // 返回节省的单元个数
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int[] code = interpreter.code;
+        int length = interpreter.arrayPtr;
+        Procedures analysis;
+        try {
+            analysis = Procedures.analyze(interpreter);
+        } catch (IllegalStateException error) {
+            return 0;
+        }
+        Map<Procedures.Procedure, Integer> sizes = new HashMap<>();
+        int saved = 0;
+        for (Procedures.Procedure procedure : analysis) {
+            int size = pack(code, analysis, procedure);
+            if (size < procedure.size) {
+                sizes.put(procedure, size);
+                saved += procedure.size - size;
+            }
+        }
+        // 修正 CLI 中携带的栈帧大小
+        for (int i = 0; i < length; i++) {
+            int word = code[i * Opcode.WIDTH];
+            if (Opcode.op(word) == Opcode.CLI) {
+                Procedures.Procedure callee = analysis.get(analysis.callee(i));
+                if (callee != null && sizes.containsKey(callee)) {
+                    code[i * Opcode.WIDTH] = Opcode.pack(Opcode.CLI, Opcode.level(word), sizes.get(callee));
+                }
+            }
+        }
+        slots += saved;
+        procedures += sizes.size();
+        return saved;
+    }
+
+    // 为过程的单元重新分配地址并改写访问它们的指令, 返回新的栈帧大小; 不能缩小时不做修改
+    private int pack(int[] code, Procedures analysis, Procedures.Procedure procedure) {
+        Liveness liveness = new Liveness(code, procedure);
+        BitSet fixed = Liveness.escaping(code, analysis, procedure);
+        fixed.or(liveness.liveIn(procedure.entry));
+        BitSet accessed = new BitSet();
+        // 写入某个单元时仍然活跃的其他单元与它冲突
+        Map<Integer, BitSet> conflicts = new HashMap<>();
+        for (int i = procedure.entry; i <= procedure.end; i++) {
+            int read = Liveness.access(code, i, procedure, false);
+            int written = Liveness.access(code, i, procedure, true);
+            if (read >= 0) {
+                accessed.set(read);
+            }
+            if (written < 0) {
+                continue;
+            }
+            accessed.set(written);
+            BitSet live = liveness.liveOut(i);
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                if (slot != written) {
+                    conflicts.computeIfAbsent(written, key -> new BitSet()).set(slot);
+                    conflicts.computeIfAbsent(slot, key -> new BitSet()).set(written);
+                }
+            }
+        }
+
+        // 按地址顺序贪心分配, 固定的单元保持原地址
+        int[] address = new int[procedure.size];
+        int size = Math.max(3, fixed.length());
+        Map<Integer, BitSet> occupants = new HashMap<>();
+        for (int slot = accessed.nextSetBit(0); slot >= 0; slot = accessed.nextSetBit(slot + 1)) {
+            if (fixed.get(slot)) {
+                address[slot] = slot;
+                continue;
+            }
+            BitSet conflict = conflicts.getOrDefault(slot, new BitSet());
+            int target = 3;
+            while (fixed.get(target) || occupants.containsKey(target) && occupants.get(target).intersects(conflict)) {
+                target++;
+            }
+            address[slot] = target;
+            occupants.computeIfAbsent(target, key -> new BitSet()).set(slot);
+            size = Math.max(size, target + 1);
+        }
+        if (size >= procedure.size) {
+            return procedure.size;
+        }
+
+        code[procedure.entry * Opcode.WIDTH + 1] = size;
+        for (int i = procedure.entry + 1; i < procedure.end; i++) {
+            int slot = Math.max(Liveness.access(code, i, procedure, false), Liveness.access(code, i, procedure, true));
+            if (slot < 0) {
+                continue;
+            }
+            int word = code[i * Opcode.WIDTH];
+            int op = Opcode.op(word);
+            if (op == Opcode.INC || op == Opcode.STL) {
+                code[i * Opcode.WIDTH] = Opcode.pack(op, Opcode.level(word), address[slot]);
+            } else {
+                code[i * Opcode.WIDTH + 1] = address[slot];
+            }
+        }
+        return size;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frame packing: %d slots saved in %d procedures", slots, procedures);
+    }
+}
@@ -0,0 +1,353 @@
+package compiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// 增量编译: 编辑器每次修改 (位置, 删除的长度, 插入的文本) 后只重新扫描受影响的单词, 扫描到与原来的单词在同一位置开始时
+// 就与原来的单词序列重新同步. 修改只涉及某个过程的语句部分时, 只重新分析这一部分, 把生成的代码替换进原来的代码,
+// 并修正之后的指令的跳转地址和行号; 修改了说明部分或过程的边界, 或者语句部分之外有语法错误时, 对全部单词重新做语法分析.
+// 重新扫描和重新分析的代价只与修改处附近的单词有关, 其余是对数组的整块复制和平移
+public class IncrementalCompiler {
+    private char[] text;
+    private int length;
+    // 所有单词共用的标识符编号
+    private final Interner interner = new Interner();
+    private final ArrayList<Token> tokens = new ArrayList<>();
+    // 每个单词在源程序中的开始位置
+    private int[] starts = new int[64];
+    // 有词法错误的单词个数
+    private int lexErrors;
+    private Interpreter interpreter;
+    // 各个过程的语句部分, 按单词的顺序排列. 语句部分之外有语法错误时为 null, 下次修改时重新做全部的语法分析
+    private List<Parser.Body> bodies;
+    private List<String> errors;
+    private Program program;
+    private int full, incremental, rescanned;
+
+    public IncrementalCompiler(String source) {
+        text = source.toCharArray();
+        length = text.length;
+        Lexer lexer = new Lexer(text, length, 0, 1, interner);
+        for (Token token = lexer.scanToken(); token != null; token = lexer.scanToken()) {
+            add(token, lexer.tokenStart());
+        }
+        rescanned = tokens.size();
+        compile();
+        report();
+    }
+
+    // 把源程序中从 offset 开始的 removed 个字符替换为 inserted
+    public void edit(int offset, int removed, String inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > length) {
+            throw new IllegalArgumentException(String.format("Invalid edit %d+%d of %d characters", offset, removed, length));
+        }
+        int delta = inserted.length() - removed;
+        int lineDelta = newlines(inserted.toCharArray(), 0, inserted.length()) - newlines(text, offset, removed);
+        int size = tokens.size();
+        // [first, after) 为与修改的范围相接或重叠的单词, after 之后的单词只需要平移
+        int first = firstEndingAt(offset);
+        int after = firstStartingAt(offset + removed);
+        // 从这个单词开始重新扫描; 修改处在空白中时从前一个单词之后开始, 单词中没有换行, 行号就是前一个单词的行号
+        int from, line;
+        if (first < size && starts[first] <= offset) {
+            from = starts[first];
+            line = tokens.get(first).line;
+        } else if (first > 0) {
+            from = end(first - 1);
+            line = tokens.get(first - 1).line;
+        } else {
+            from = 0;
+            line = 1;
+        }
+
+        if (length + delta > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, length + delta));
+        }
+        System.arraycopy(text, offset + removed, text, offset + inserted.length(), length - offset - removed);
+        inserted.getChars(0, inserted.length(), text, offset);
+        length += delta;
+
+        // 重新扫描, 直到新单词的开始位置与某个原来的单词平移后的开始位置相同
+        Lexer lexer = new Lexer(text, length, from, line, interner);
+        List<Token> scanned = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        int resync = after;
+        for (Token token = lexer.scanToken(); ; token = lexer.scanToken()) {
+            if (token == null) {
+                resync = size;
+                break;
+            }
+            int start = lexer.tokenStart();
+            while (resync < size && starts[resync] + delta < start) {
+                resync++;
+            }
+            if (resync < size && starts[resync] + delta == start) {
+                break;
+            }
+            scanned.add(token);
+            positions.add(start);
+        }
+        rescanned = scanned.size();
+        // 开头与原来相同的单词不算修改
+        int same = 0;
+        while (same < scanned.size() && first + same < resync && positions.get(same) == starts[first + same]
+                && scanned.get(same).symbol == tokens.get(first + same).symbol
+                && scanned.get(same).name.equals(tokens.get(first + same).name)) {
+            same++;
+        }
+        first += same;
+        scanned = scanned.subList(same, scanned.size());
+        positions = positions.subList(same, positions.size());
+
+        // 用新单词替换 [first, resync), 之后的单词平移
+        for (int i = first; i < resync; i++) {
+            if (Lexer.isError(tokens.get(i))) {
+                lexErrors--;
+            }
+        }
+        for (Token token : scanned) {
+            if (Lexer.isError(token)) {
+                lexErrors++;
+            }
+        }
+        int removedTokens = resync - first, next = first + scanned.size();
+        if (size - removedTokens + scanned.size() > starts.length) {
+            starts = Arrays.copyOf(starts, Math.max(starts.length * 2, size - removedTokens + scanned.size()));
+        }
+        System.arraycopy(starts, resync, starts, next, size - resync);
+        for (int i = 0; i < scanned.size(); i++) {
+            starts[first + i] = positions.get(i);
+        }
+        tokens.subList(first, resync).clear();
+        tokens.addAll(first, scanned);
+        for (int i = next; i < tokens.size(); i++) {
+            starts[i] += delta;
+            if (lineDelta != 0) {
+                tokens.get(i).line += lineDelta;
+            }
+        }
+
+        if (scanned.isEmpty() && removedTokens == 0 && lineDelta == 0) {
+            // 只修改了空白
+            return;
+        }
+        program = null;
+        if (!reparse(first, resync, scanned.size() - removedTokens, lineDelta)) {
+            compile();
+        }
+        report();
+    }
+
+    private void add(Token token, int start) {
+        if (tokens.size() == starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[tokens.size()] = start;
+        tokens.add(token);
+        if (Lexer.isError(token)) {
+            lexErrors++;
+        }
+    }
+
+    private int end(int index) {
+        return starts[index] + tokens.get(index).name.length();
+    }
+
+    // 第一个结束位置不在 offset 之前的单词, 紧接在修改处之前的单词可能与插入的字符连成一个单词
+    private int firstEndingAt(int offset) {
+        int low = 0, high = tokens.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (end(middle) < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int firstStartingAt(int offset) {
+        int low = 0, high = tokens.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int newlines(char[] chars, int offset, int count) {
+        int res = 0;
+        for (int i = offset; i < offset + count; i++) {
+            if (chars[i] == '\n') {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    private void compile() {
+        full++;
+        interpreter = new Interpreter();
+        List<Parser.Body> recorded = new ArrayList<>();
+        Parser parser = new Parser(new Lexer(tokens), interpreter);
+        parser.record(recorded);
+        parser.nextToken();
+        List<String> found = Collections.emptyList();
+        try {
+            parser.parse();
+        } catch (CompileException error) {
+            found = error.getErrors();
+        }
+        int inBodies = 0;
+        for (Parser.Body body : recorded) {
+            inBodies += body.errors.size();
+        }
+        bodies = found.size() == inBodies ? recorded : null;
+        if (bodies == null) {
+            errors = new ArrayList<>(found);
+        }
+    }
+
+    // 原来的单词 [first, resync) 被替换, 单词数增加了 tokenDelta. 修改处在某个语句部分之内时只重新分析这一部分
+    private boolean reparse(int first, int resync, int tokenDelta, int lineDelta) {
+        if (bodies == null) {
+            return false;
+        }
+        int index = -1;
+        for (int low = 0, high = bodies.size() - 1; low <= high; ) {
+            int middle = (low + high) >>> 1;
+            if (bodies.get(middle).first <= first) {
+                index = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (index < 0 || resync > bodies.get(index).stop) {
+            return false;
+        }
+        Parser.Body body = bodies.get(index);
+        // 之后的语句部分中报告的错误带有行号, 行号改变时重新分析全部
+        if (lineDelta != 0) {
+            for (int i = index + 1; i < bodies.size(); i++) {
+                if (!bodies.get(i).errors.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+
+        Interpreter part = new Interpreter();
+        Parser parser = new Parser(new Lexer(tokens.subList(body.first, tokens.size())), part);
+        int stop = parser.reparse(body, body.first > 0 ? tokens.get(body.first - 1) : null);
+        if (stop < 0 || body.first + stop != body.stop + tokenDelta) {
+            // 语句部分的边界改变了
+            return false;
+        }
+        incremental++;
+        int base = body.entry + 1, end = body.end;
+        int codeDelta = part.arrayPtr - (end - body.entry);
+        // 新的语句部分中的跳转地址从 0 开始, 调用的过程在原来的代码中
+        for (int i = 0; i < part.arrayPtr; i++) {
+            int op = Opcode.op(part.code[i * Opcode.WIDTH]);
+            if (op == Opcode.JMP || op == Opcode.JPC) {
+                part.code[i * Opcode.WIDTH + 1] += base;
+            } else if (op == Opcode.CAL && part.code[i * Opcode.WIDTH + 1] > end) {
+                part.code[i * Opcode.WIDTH + 1] += codeDelta;
+            }
+        }
+        interpreter.replace(base, end + 1, part, lineDelta);
+        if (codeDelta != 0) {
+            int[] code = interpreter.code;
+            for (int i = 0; i < interpreter.arrayPtr; i++) {
+                if (i == base) {
+                    i += part.arrayPtr - 1;
+                    continue;
+                }
+                int op = Opcode.op(code[i * Opcode.WIDTH]);
+                if ((op == Opcode.JMP || op == Opcode.JPC || op == Opcode.CAL) && code[i * Opcode.WIDTH + 1] > end) {
+                    code[i * Opcode.WIDTH + 1] += codeDelta;
+                }
+            }
+            for (Parser.Body other : bodies) {
+                for (Item item : other.scope) {
+                    if (item.type == Type.Procedure && item.address > end) {
+                        item.address += codeDelta;
+                    }
+                }
+            }
+        }
+        body.stop += tokenDelta;
+        body.end = base + part.arrayPtr - 1;
+        body.errors = new ArrayList<>(parser.getErrors());
+        for (int i = index + 1; i < bodies.size(); i++) {
+            Parser.Body other = bodies.get(i);
+            other.first += tokenDelta;
+            other.stop += tokenDelta;
+            other.entry += codeDelta;
+            other.end += codeDelta;
+        }
+        return true;
+    }
+
+    // 有词法错误时与完整的编译一样只报告词法错误
+    private void report() {
+        if (lexErrors > 0) {
+            Lexer lexer = new Lexer(text, length, 0, 1, new Interner());
+            try {
+                lexer.lex();
+            } catch (LexException error) {
+                errors = new ArrayList<>(error.getErrors());
+            } catch (IOException error) {
+                throw new IllegalStateException(error);
+            }
+        } else if (bodies != null) {
+            errors = new ArrayList<>();
+            for (Parser.Body body : bodies) {
+                errors.addAll(body.errors);
+            }
+        }
+    }
+
+    // 有词法错误时 getErrors() 只包含词法错误
+    public boolean hasLexErrors() {
+        return lexErrors > 0;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    // 没有错误时返回编译出的程序, 否则返回 null
+    public Program getProgram() {
+        if (program == null && errors.isEmpty()) {
+            program = interpreter.toProgram();
+        }
+        return program;
+    }
+
+    public List<Instruction> getInstructions() {
+        return interpreter.getInstructions();
+    }
+
+    public ArrayList<Token> getTokens() {
+        return tokens;
+    }
+
+    public String getText() {
+        return new String(text, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tokens, %d full parses, %d incremental, last edit rescanned %d tokens",
+                tokens.size(), full, incremental, rescanned);
+    }
+}
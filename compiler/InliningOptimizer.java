@@ -0,0 +1,234 @@
+package compiler;
+
+import java.util.*;
+
+// 过程内联: 把短小, 不递归, 不调用自身内层过程的过程体直接展开在调用处.
+// 被调过程的局部变量移到调用者栈帧末尾新增的单元中, 访问外层变量和调用其他过程的层次差按两者的层次差调整.
+// 同一调用者中展开的各个过程体依次执行, 不会同时活跃, 因此共用同一段新增的单元
+public class InliningOptimizer implements Pass {
+    // 过程体 (不含入口的 INT 和结尾的 OPR 0 0) 的最大指令条数
+    public static final int MAX_SIZE = 16;
+    // 一次优化中因内联增加的最大指令条数
+    public static final int MAX_GROWTH = 4096;
+    // 内联得到的过程体中可能还有可以内联的调用, 最多重复的轮数
+    private static final int ROUNDS = 4;
+    private final int maxSize, maxGrowth;
+    private int sites;
+
+    public InliningOptimizer() {
+        this(MAX_SIZE, MAX_GROWTH);
+    }
+
+    public InliningOptimizer(int maxSize, int maxGrowth) {
+        this.maxSize = maxSize;
+        this.maxGrowth = maxGrowth;
+    }
+
+    // 返回展开的调用个数
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int total = 0, growth = 0;
+        for (int round = 0; round < ROUNDS && growth < maxGrowth; round++) {
+            int[] result = inline(interpreter, maxGrowth - growth);
+            if (result[0] == 0) {
+                break;
+            }
+            total += result[0];
+            growth += result[1];
+        }
+        sites += total;
+        return total;
+    }
+
+    // 做一轮内联, 返回展开的调用个数和增加的指令条数
+    private int[] inline(Interpreter interpreter, int budget) {
+        int[] code = interpreter.code;
+        int length = interpreter.arrayPtr;
+        Procedures procedures;
+        try {
+            procedures = Procedures.analyze(interpreter);
+        } catch (IllegalStateException error) {
+            return new int[]{0, 0};
+        }
+        Set<Procedures.Procedure> inlinable = new HashSet<>();
+        for (Procedures.Procedure procedure : procedures) {
+            if (inlinable(code, procedure)) {
+                inlinable.add(procedure);
+            }
+        }
+
+        // 选出要展开的调用, 以及每个调用者需要新增的单元数
+        int[] site = new int[length];
+        Map<Procedures.Procedure, Integer> extension = new HashMap<>();
+        int count = 0, growth = 0;
+        for (Procedures.Procedure caller : procedures) {
+            for (int i = caller.entry + 1; i < caller.end; i++) {
+                if (!procedures.isCall(i)) {
+                    continue;
+                }
+                Procedures.Procedure callee = procedures.get(procedures.callee(i));
+                int body = callee == null ? 0 : callee.end - callee.entry - 1;
+                if (callee == null || callee == caller || !inlinable.contains(callee)
+                        || growth + body - 1 > budget || !relocatable(code, callee, caller)) {
+                    continue;
+                }
+                site[i] = callee.entry;
+                extension.merge(caller, callee.size - 3, Math::max);
+                count++;
+                growth += body - 1;
+            }
+        }
+        if (count == 0) {
+            return new int[]{0, 0};
+        }
+
+        int[] result = new int[Math.max(code.length, (length + growth + 1) * Opcode.WIDTH)];
+        int[] lines = new int[result.length / Opcode.WIDTH];
+        int[] map = new int[length + 1];
+        // 需要按 map 修正跳转目标的指令
+        BitSet remap = new BitSet();
+        int ptr = 0;
+        for (int i = 0; i < length; i++) {
+            map[i] = ptr;
+            int word = code[i * Opcode.WIDTH];
+            int argument = code[i * Opcode.WIDTH + 1];
+            if (site[i] != 0) {
+                Procedures.Procedure caller = procedures.at(i);
+                Procedures.Procedure callee = procedures.get(site[i]);
+                ptr = expand(interpreter, callee, caller, result, lines, ptr, remap);
+                continue;
+            }
+            int op = Opcode.op(word);
+            if (op == Opcode.INT) {
+                // 调用者的栈帧增大
+                Procedures.Procedure procedure = procedures.get(i);
+                if (procedure != null && extension.containsKey(procedure)) {
+                    argument += extension.get(procedure);
+                }
+            } else if (op == Opcode.CLI) {
+                Procedures.Procedure callee = procedures.get(procedures.callee(i));
+                if (callee != null && extension.containsKey(callee)) {
+                    word = Opcode.pack(op, Opcode.level(word), Opcode.extra(word) + extension.get(callee));
+                }
+            }
+            if (Opcode.isJump(op)) {
+                remap.set(ptr);
+            }
+            result[ptr * Opcode.WIDTH] = word;
+            result[ptr * Opcode.WIDTH + 1] = argument;
+            lines[ptr] = interpreter.getLine(i);
+            ptr++;
+        }
+        map[length] = ptr;
+        for (int i = remap.nextSetBit(0); i >= 0; i = remap.nextSetBit(i + 1)) {
+            result[i * Opcode.WIDTH + 1] = map[result[i * Opcode.WIDTH + 1]];
+        }
+        interpreter.setCode(result, lines, ptr);
+        return new int[]{count, ptr - length};
+    }
+
+    // 短小, 不在调用环上, 也不调用自己的内层过程 (内层过程的静态链要指向被调过程自己的栈帧)
+    private boolean inlinable(int[] code, Procedures.Procedure procedure) {
+        if (procedure.level == 0 || procedure.end - procedure.entry - 1 > maxSize || reaches(procedure, procedure)) {
+            return false;
+        }
+        for (int i = procedure.entry + 1; i < procedure.end; i++) {
+            int op = Opcode.op(code[i * Opcode.WIDTH]);
+            // 展开后的尾调用会从调用者返回
+            if ((op == Opcode.CAL || op == Opcode.CLI) && Opcode.level(code[i * Opcode.WIDTH]) == 0
+                    || op == Opcode.INT || op == Opcode.TCL) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean reaches(Procedures.Procedure from, Procedures.Procedure target) {
+        Deque<Procedures.Procedure> work = new ArrayDeque<>(from.callees);
+        Set<Procedures.Procedure> seen = new HashSet<>();
+        while (!work.isEmpty()) {
+            Procedures.Procedure procedure = work.pop();
+            if (procedure == target) {
+                return true;
+            }
+            if (seen.add(procedure)) {
+                work.addAll(procedure.callees);
+            }
+        }
+        return false;
+    }
+
+    // 调整后的层次和地址都要能放进指令中
+    private boolean relocatable(int[] code, Procedures.Procedure callee, Procedures.Procedure caller) {
+        int shift = caller.level - callee.level;
+        for (int i = callee.entry + 1; i < callee.end; i++) {
+            int word = code[i * Opcode.WIDTH];
+            int op = Opcode.op(word);
+            if (!hasVariable(op) && op != Opcode.CAL && op != Opcode.CLI) {
+                continue;
+            }
+            int level = Opcode.level(word);
+            if (level + shift > Opcode.LEVEL_MAX) {
+                return false;
+            }
+            if (level == 0 && (op == Opcode.INC || op == Opcode.STL)
+                    && !Opcode.fitsExtra(caller.size + Opcode.extra(word) - 3)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 把 callee 的过程体展开到 result[ptr] 处, 返回展开后的下一个位置
+    private int expand(Interpreter interpreter, Procedures.Procedure callee, Procedures.Procedure caller,
+                       int[] result, int[] lines, int ptr, BitSet remap) {
+        int[] code = interpreter.code;
+        int start = callee.entry + 1, end = callee.end;
+        // 访问外层的层次差增加调用者与被调者的层次差
+        int shift = caller.level - callee.level;
+        for (int i = start; i < end; i++) {
+            int word = code[i * Opcode.WIDTH];
+            int argument = code[i * Opcode.WIDTH + 1];
+            int op = Opcode.op(word);
+            int level = Opcode.level(word);
+            if (hasVariable(op)) {
+                if (level == 0) {
+                    // 被调过程自己的变量移到调用者栈帧的末尾
+                    if (op == Opcode.INC || op == Opcode.STL) {
+                        word = Opcode.pack(op, 0, caller.size + Opcode.extra(word) - 3);
+                    } else {
+                        argument = caller.size + argument - 3;
+                    }
+                } else {
+                    word = Opcode.pack(op, level + shift, Opcode.extra(word));
+                }
+            } else if (op == Opcode.CAL || op == Opcode.CLI) {
+                word = Opcode.pack(op, level + shift, Opcode.extra(word));
+            }
+            if (Opcode.isJump(op)) {
+                if (argument >= start && argument <= end) {
+                    // 过程体内的跳转, 跳到结尾即跳到展开代码之后
+                    argument = ptr + argument - i;
+                } else {
+                    remap.set(ptr);
+                }
+            }
+            result[ptr * Opcode.WIDTH] = word;
+            result[ptr * Opcode.WIDTH + 1] = argument;
+            lines[ptr] = interpreter.getLine(i);
+            ptr++;
+        }
+        return ptr;
+    }
+
+    // 按层次差和地址访问变量的指令, INC 和 STL 的地址在附加操作数中, 其余在参数中
+    private static boolean hasVariable(int op) {
+        return op == Opcode.LOD || op == Opcode.STO || op == Opcode.RED || op == Opcode.LDO
+                || op == Opcode.INC || op == Opcode.STL;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("inlining: %d call sites", sites);
+    }
+}
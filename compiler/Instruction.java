@@ -1,7 +1,7 @@
 package compiler;
 
 public class Instruction {
-    public int level, argument;
+    public int level, argument, extra;
     public Code code;
 
     public Instruction(Code code, int level, int argument) {
@@ -10,12 +10,21 @@ public class Instruction {
         this.argument = argument;
     }
 
+    public Instruction(Code code, int level, int extra, int argument) {
+        this(code, level, argument);
+        this.extra = extra;
+    }
+
     @Override
     public String toString() {
+        if (Opcode.hasExtra(code.ordinal())) {
+            return String.format("%s %d %d %d", code, level, extra, argument);
+        }
         return String.format("%s %d %d", code, level, argument);
     }
 }
 
 enum Code {
-    LIT, OPR, LOD, STO, CAL, INT, JMP ,JPC, WRT, RED
-}
\ No newline at end of file
+    LIT, OPR, LOD, STO, CAL, INT, JMP ,JPC, WRT, RED,
+    INC, STL, LDO, LTO, JNC, JLC, CLI, LDG, STG, TCL
+}
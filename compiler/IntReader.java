@@ -0,0 +1,90 @@
+package compiler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+// RED 指令的输入: 直接在缓冲区上解析十进制整数, 代替 Scanner 的正则匹配.
+// 可以包装任意 Reader, 也可以把输入文件整个映射到内存中按字节读取
+public class IntReader {
+    private static final int BUFFER_SIZE = 8192;
+    private Reader reader;
+    private char[] buffer;
+    private int position, limit;
+    private ByteBuffer mapped;
+
+    public IntReader(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    public IntReader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private int read() {
+        if (mapped != null) {
+            return mapped.hasRemaining() ? mapped.get() & 0xFF : -1;
+        }
+        if (position == limit) {
+            try {
+                limit = reader.read(buffer, 0, buffer.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    // 与 Scanner.nextInt 一致: 输入结束时抛出 NoSuchElementException, 不是整数时抛出 InputMismatchException
+    public int nextInt() {
+        int c = read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f') {
+            c = read();
+        }
+        if (c == -1) {
+            throw new NoSuchElementException();
+        }
+        boolean negative = false;
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            c = read();
+        }
+        if (c < '0' || c > '9') {
+            throw new InputMismatchException();
+        }
+        // 按负数累加, 这样 Integer.MIN_VALUE 也不会溢出
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            int digit = c - '0';
+            if (value < (Integer.MIN_VALUE + digit) / 10) {
+                throw new InputMismatchException("Integer out of range");
+            }
+            value = value * 10 - digit;
+            c = read();
+        }
+        if (c != -1 && c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != '\f') {
+            throw new InputMismatchException();
+        }
+        if (negative) {
+            return value;
+        }
+        if (value == Integer.MIN_VALUE) {
+            throw new InputMismatchException("Integer out of range");
+        }
+        return -value;
+    }
+}
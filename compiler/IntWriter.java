@@ -0,0 +1,70 @@
+package compiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+// WRT 指令的输出缓冲: 整数直接格式化到字符数组中, 积累到阈值或程序结束时才写出
+public class IntWriter {
+    public static final int THRESHOLD = 8192;
+    // 一个 int 最多 11 个字符, 加上换行
+    private static final int MAX_LENGTH = 12;
+    private final Writer out;
+    private final char[] buffer;
+    private final int threshold;
+    private int size;
+
+    public IntWriter(Writer out) {
+        this(out, THRESHOLD);
+    }
+
+    // threshold 为 0 时每次输出后立即刷新, 适合交互式运行
+    public IntWriter(Writer out, int threshold) {
+        this.out = out;
+        this.threshold = threshold;
+        this.buffer = new char[Math.max(threshold, 0) + MAX_LENGTH];
+    }
+
+    public void write(int value) {
+        if (value == Integer.MIN_VALUE) {
+            // 无法取反, 单独处理
+            String s = Integer.toString(value);
+            s.getChars(0, s.length(), buffer, size);
+            size += s.length();
+        } else {
+            if (value < 0) {
+                buffer[size++] = '-';
+                value = -value;
+            }
+            int end = size + digits(value);
+            for (int i = end - 1; i >= size; i--) {
+                buffer[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            size = end;
+        }
+        buffer[size++] = '\n';
+        if (size >= threshold) {
+            flush();
+        }
+    }
+
+    private static int digits(int value) {
+        int n = 1;
+        while (value >= 10) {
+            value /= 10;
+            n++;
+        }
+        return n;
+    }
+
+    public void flush() {
+        try {
+            out.write(buffer, 0, size);
+            out.flush();
+            size = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package compiler;
+
+import java.util.Arrays;
+
+// 一次编译中的标识符表: 每个不同的标识符对应一个从 0 开始的连续编号, 相同的标识符共用同一个 String.
+// 保留字最先加入, 占用前 Token.KEYWORDS.length 个编号, 所以判断保留字和比较名字都只需要比较整数.
+// 直接在源程序的字符数组上查找, 已经出现过的标识符不再创建字符串
+final class Interner {
+    private String[] names;
+    private int[] hashes;
+    // 开放定址的散列表, 存放编号加一, 0 为空位
+    private int[] slots;
+    private int size;
+
+    Interner() {
+        names = new String[64];
+        hashes = new int[64];
+        slots = new int[128];
+        for (String keyword : Token.KEYWORDS) {
+            intern(keyword);
+        }
+    }
+
+    int intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = slots.length - 1;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && matches(names[id], chars, offset, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(new String(chars, offset, length), hash, slot);
+    }
+
+    int intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static boolean matches(String name, char[] chars, int offset, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = ++size;
+        // 装填因子不超过一半
+        if (size * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int id = 0; id < size; id++) {
+                int i = (hashes[id] ^ hashes[id] >>> 16) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = id + 1;
+            }
+        }
+        return size - 1;
+    }
+}
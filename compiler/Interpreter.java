@@ -3,164 +3,233 @@ package compiler;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
 public class Interpreter {
-    // 运行栈上限
-    private static final int stackSize = 1000;
-    // Pcode 数组大小
-    private static final int arraySize = 1000;
-    public Instruction[] instructions;
+    // 运行栈和 Pcode 数组的初始大小, 不够时成倍增长
+    static final int stackSize = 1024;
+    private static final int arraySize = 1024;
+    // 默认上限
+    public static final int STACK_LIMIT = 1 << 24;
+    public static final int CODE_LIMIT = 1 << 20;
+    // 指令按 Opcode 的格式紧凑地存放, 第 i 条指令位于 code[2 * i] 和 code[2 * i + 1]
+    public int[] code;
     public int arrayPtr;
+    // 每条指令对应的源程序行号, 以及下一条生成的指令所属的行
+    private int[] lines;
+    private int line;
+    private int stackLimit = STACK_LIMIT;
+    private int codeLimit = CODE_LIMIT;
+    // 是否一开始就按上限分配运行栈, 避免深递归时反复扩容复制
+    private boolean reserveStack;
+    // 输出缓冲积累到多少个字符时写出, 0 表示每次 WRT 后立即写出
+    private int flushThreshold = IntWriter.THRESHOLD;
 
     public Interpreter() {
-        this.instructions = new Instruction[arraySize];
+        this.code = new int[arraySize * Opcode.WIDTH];
+        this.lines = new int[arraySize];
         arrayPtr = 0;
     }
 
+    public void setStackLimit(int stackLimit) {
+        this.stackLimit = stackLimit;
+    }
+
+    public int getStackLimit() {
+        return stackLimit;
+    }
+
+    public void setCodeLimit(int codeLimit) {
+        this.codeLimit = codeLimit;
+    }
+
+    public void setReserveStack(boolean reserveStack) {
+        this.reserveStack = reserveStack;
+    }
+
+    public void setFlushThreshold(int flushThreshold) {
+        this.flushThreshold = flushThreshold;
+    }
+
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+
     public void generate(Code code, int level, int argument) throws ParseException {
-        if (arrayPtr >= arraySize) {
+        if (arrayPtr >= codeLimit) {
             throw new ParseException("Program too large");
         }
-        instructions[arrayPtr] = new Instruction(code, level, argument);
+        if ((arrayPtr + 1) * Opcode.WIDTH > this.code.length) {
+            this.code = Arrays.copyOf(this.code, Math.min(this.code.length * 2, codeLimit * Opcode.WIDTH));
+        }
+        if (arrayPtr >= lines.length) {
+            lines = Arrays.copyOf(lines, this.code.length / Opcode.WIDTH);
+        }
+        lines[arrayPtr] = line;
+        int index = arrayPtr * Opcode.WIDTH;
+        this.code[index] = Opcode.pack(code.ordinal(), level);
+        this.code[index + 1] = argument;
         arrayPtr++;
     }
 
+    public Instruction getInstruction(int index) {
+        int word = code[index * Opcode.WIDTH];
+        return new Instruction(Opcode.code(word), Opcode.level(word), Opcode.extra(word), code[index * Opcode.WIDTH + 1]);
+    }
+
+    public void setLine(int line) {
+        this.line = line;
+    }
+
+    public int getLine(int index) {
+        return lines[index];
+    }
+
+    // 丢弃 length 之后生成的代码
+    public void rewind(int length) {
+        arrayPtr = length;
+    }
+
+    // 删除 [from, to) 的指令, 后面的指令前移; 前移的代码中不能有跳转
+    public void remove(int from, int to) {
+        System.arraycopy(code, to * Opcode.WIDTH, code, from * Opcode.WIDTH, (arrayPtr - to) * Opcode.WIDTH);
+        System.arraycopy(lines, to, lines, from, arrayPtr - to);
+        arrayPtr -= to - from;
+    }
+
+    // 用 part 中的全部指令替换 [from, to) 的指令, 后面的指令随之移动, 行号加上 lineDelta. 不修改跳转地址
+    void replace(int from, int to, Interpreter part, int lineDelta) {
+        int length = arrayPtr + part.arrayPtr - (to - from);
+        if (length * Opcode.WIDTH > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length * Opcode.WIDTH));
+        }
+        if (length > lines.length) {
+            lines = Arrays.copyOf(lines, Math.max(lines.length * 2, length));
+        }
+        int next = from + part.arrayPtr;
+        System.arraycopy(code, to * Opcode.WIDTH, code, next * Opcode.WIDTH, (arrayPtr - to) * Opcode.WIDTH);
+        System.arraycopy(lines, to, lines, next, arrayPtr - to);
+        System.arraycopy(part.code, 0, code, from * Opcode.WIDTH, part.arrayPtr * Opcode.WIDTH);
+        System.arraycopy(part.lines, 0, lines, from, part.arrayPtr);
+        if (lineDelta != 0) {
+            for (int i = next; i < length; i++) {
+                lines[i] += lineDelta;
+            }
+        }
+        arrayPtr = length;
+    }
+
+    public void setArgument(int index, int argument) {
+        code[index * Opcode.WIDTH + 1] = argument;
+    }
+
+    // 用优化后的代码和对应的行号替换当前代码
+    void setCode(int[] code, int[] lines, int length) {
+        this.code = code;
+        this.lines = lines;
+        this.arrayPtr = length;
+    }
+
     public void printInstructions(int start) {
         for (int i = start; i < arrayPtr; i++) {
-            System.out.println(instructions[i]);
+            System.out.println(getInstruction(i));
         }
         System.out.println();
     }
 
-    private int base(int l, int b, int[] runtimeStack) {
-        // 通过给定的层次差来获得该层的堆栈帧基址
-        while (l > 0) {
-            b = runtimeStack[b];
-            l--;
+    // 运行栈的初始大小
+    int initialStack() {
+        return reserveStack ? stackLimit : Math.min(stackSize, stackLimit);
+    }
+
+    // 运行栈至少要容纳 needed 个单元, 按两倍增长, 超过上限时抛出 StackOverflowException
+    static int[] grow(int[] stack, int needed, int limit) {
+        if (needed <= stack.length) {
+            return stack;
+        }
+        if (needed > limit) {
+            throw new StackOverflowException(needed, limit);
         }
-        return b;
+        return Arrays.copyOf(stack, (int) Math.min(Math.max((long) stack.length * 2, needed), limit));
+    }
+
+    static int operate(int operator, int a, int b) {
+        // 与 OPR 的二元运算编号一致, 14 号左移只由强度削减生成
+        switch (operator) {
+            case 2:
+                return a + b;
+            case 3:
+                return a - b;
+            case 4:
+                return a * b;
+            case 5:
+                return a / b;
+            case 8:
+                return a == b ? 1 : 0;
+            case 9:
+                return a != b ? 1 : 0;
+            case 10:
+                return a < b ? 1 : 0;
+            case 11:
+                return a <= b ? 1 : 0;
+            case 12:
+                return a > b ? 1 : 0;
+            case 13:
+                return a >= b ? 1 : 0;
+            case 14:
+                return a << b;
+            default:
+                throw new IllegalArgumentException("Unknown operator " + operator);
+        }
+    }
+
+    // 生成不可变的程序, 之后对 Interpreter 的修改 (如继续优化) 不影响已生成的程序
+    public Program toProgram() {
+        return new Program(code, lines, arrayPtr, stackLimit, initialStack(), flushThreshold);
+    }
+
+    // 加载 ProgramFile 格式的程序, 使用这里设置的运行参数
+    public Program load(Path path) throws IOException {
+        return ProgramFile.load(path, stackLimit, initialStack(), flushThreshold);
+    }
+
+    public void interpret(BufferedReader in, BufferedWriter out, Engine engine) {
+        toProgram().interpret(in, out, engine);
     }
 
     public void interpret(BufferedReader in, BufferedWriter out) {
-        int[] runtimeStack = new int[stackSize];
-        int pc = 0, bp = 0, sp = -1;
-        Instruction instruction;
-        Scanner scanner = new Scanner(in);
-        do {
-            instruction = instructions[pc++];
-            switch (instruction.code) {
-                case LIT:
-                    // 加载某个数值
-                    ++sp;
-                    runtimeStack[sp] = instruction.argument;
-                    break;
-                case LOD:
-                    // 加载某个标识符对应的值
-                    ++sp;
-                    runtimeStack[sp] = runtimeStack[base(instruction.level, bp, runtimeStack) + instruction.argument];
-                    break;
-                case STO:
-                    // 保存某个标识符
-                    runtimeStack[base(instruction.level, bp, runtimeStack) + instruction.argument] = runtimeStack[sp];
-                    sp--;
-                    break;
-                case CAL:
-                    runtimeStack[sp + 1] = base(instruction.level, bp, runtimeStack);
-                    runtimeStack[sp + 2] = bp;
-                    runtimeStack[sp + 3] = pc;
-                    bp = sp + 1;
-                    pc = instruction.argument;
-                    break;
-                case INT:
-                    sp += instruction.argument;
-                    break;
-                case JMP:
-                    pc = instruction.argument;
-                    break;
-                case JPC:
-                    if (runtimeStack[sp] == 0) {
-                        pc = instruction.argument;
-                    }
-                    sp--;
-                    break;
-                case OPR:
-                    switch (instruction.argument) {
-                        case 0:
-                            sp = bp - 1;
-                            bp = runtimeStack[sp + 2];
-                            pc = runtimeStack[sp + 3];
-                            break;
-                        case 1:
-                            runtimeStack[sp] = -runtimeStack[sp];
-                            break;
-                        case 2:
-                            runtimeStack[sp - 1] += runtimeStack[sp];
-                            sp--;
-                            break;
-                        case 3:
-                            runtimeStack[sp - 1] -= runtimeStack[sp];
-                            sp--;
-                            break;
-                        case 4:
-                            runtimeStack[sp - 1] *= runtimeStack[sp];
-                            sp--;
-                            break;
-                        case 5:
-                            runtimeStack[sp - 1] /= runtimeStack[sp];
-                            sp--;
-                            break;
-                        case 6:
-                            runtimeStack[sp] %= 2;
-                            break;
-                        case 8:
-                            runtimeStack[sp - 1] = runtimeStack[sp - 1] == runtimeStack[sp] ? 1 : 0;
-                            sp--;
-                            break;
-                        case 9:
-                            runtimeStack[sp - 1] = runtimeStack[sp - 1] != runtimeStack[sp] ? 1 : 0;
-                            sp--;
-                            break;
-                        case 10:
-                            runtimeStack[sp - 1] = runtimeStack[sp - 1] < runtimeStack[sp] ? 1 : 0;
-                            sp--;
-                            break;
-                        case 11:
-                            runtimeStack[sp - 1] = runtimeStack[sp - 1] <= runtimeStack[sp] ? 1 : 0;
-                            sp--;
-                            break;
-                        case 12:
-                            runtimeStack[sp - 1] = runtimeStack[sp - 1] > runtimeStack[sp] ? 1 : 0;
-                            sp--;
-                            break;
-                        case 13:
-                            runtimeStack[sp - 1] = runtimeStack[sp - 1] >= runtimeStack[sp] ? 1 : 0;
-                            sp--;
-                            break;
-                    }
-                    break;
-                case WRT:
-                    try {
-                        out.write(Integer.toString(runtimeStack[sp]) + "\n");
-                        out.flush();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                    sp--;
-                    break;
-                case RED:
-                    sp++;
-                    runtimeStack[sp] = scanner.nextInt();
-                    runtimeStack[base(instruction.level, bp, runtimeStack) + instruction.argument] = runtimeStack[sp];
-                    sp--;
-                    break;
-            }
-        } while (pc != 0);
+        interpret(in, out, Engine.SWITCH);
+    }
+
+    public void interpret(IntReader in, IntWriter out, Engine engine) {
+        toProgram().interpret(in, out, engine);
+    }
+
+    public ExecutionContext newContext(BufferedReader in, BufferedWriter out) {
+        return toProgram().newContext(in, out);
+    }
+
+    public Profile profile(BufferedReader in, BufferedWriter out) {
+        return toProgram().profile(in, out);
+    }
+
+    // 每个栈帧至少占三个单元, 由此得到调用深度的上限
+    static int savedSize(int stackLength) {
+        return 2 * (stackLength / 3 + 1);
     }
 
     public List<Instruction> getInstructions() {
         List<Instruction> res = new ArrayList<>(arrayPtr);
-        res.addAll(Arrays.asList(instructions).subList(0, arrayPtr));
+        for (int i = 0; i < arrayPtr; i++) {
+            res.add(getInstruction(i));
+        }
         return res;
     }
 }
+
+// 执行引擎: SWITCH 为逐条分派的解释循环, THREADED 为预先连接好的结点链, JIT 为编译成 JVM 字节码,
+// REGISTER 为翻译成寄存器中间代码后在寄存器虚拟机上执行, TIERED 先解释执行, 只把热的过程和循环编译成 JVM 字节码
+enum Engine {
+    SWITCH, THREADED, JIT, REGISTER, TIERED
+}
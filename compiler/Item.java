@@ -2,6 +2,8 @@ package compiler;
 
 public class Item {
     public String name;
+    // 名字在 Interner 中的编号
+    public int id;
     public Type type;
     public int value;
     public int level;
@@ -10,6 +12,7 @@ public class Item {
 
     public Item() {
         name = "";
+        id = -1;
     }
 
     @Override
@@ -0,0 +1,525 @@
+package compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+// 把 Pcode 编译成 JVM 字节码: 每个过程对应隐藏类中的一个静态方法 p<入口地址>(JitRuntime, bp),
+// 表达式求值直接使用 JVM 操作数栈, 不被内层过程访问的变量成为 JVM 局部变量,
+// 其余变量仍放在运行栈中, 外层变量通过 display 中的栈帧基址访问
+public class JitCompiler {
+    private static final String CLASS_NAME = "compiler/JitProgram";
+    private static final String RUNTIME = "compiler/JitRuntime";
+    private static final String DESCRIPTOR = "(L" + RUNTIME + ";I)V";
+    // 方法中固定用途的局部变量
+    private static final int RUNTIME_LOCAL = 0, BP_LOCAL = 1, STACK_LOCAL = 2, DISPLAY_LOCAL = 3, SAVED_LOCAL = 4;
+    // 第一个变量 (地址为 3) 对应的局部变量
+    private static final int FIRST_VARIABLE = 5;
+    // 关系运算 8..13 对应的 if_icmp 指令, 以及条件取反后的指令
+    private static final int[] COMPARE = {0x9f, 0xa0, 0xa1, 0xa4, 0xa3, 0xa2};
+    private static final int[] NEGATED = {0xa0, 0x9f, 0xa2, 0xa3, 0xa4, 0xa1};
+
+    private final int[] code;
+    private final Program program;
+    private final Procedures procedures;
+    // 每个过程中被内层过程访问的变量地址
+    private final Map<Procedures.Procedure, BitSet> escaping = new HashMap<>();
+    private int levels;
+    private MethodHandle main;
+
+    public JitCompiler(Program program) {
+        this.code = program.code();
+        this.program = program;
+        this.procedures = Procedures.analyze(program);
+    }
+
+    public void execute(IntReader in, IntWriter out) {
+        if (main == null) {
+            compile();
+        }
+        JitRuntime runtime = new JitRuntime(program.initialStack(), program.getStackLimit(), levels, in, out);
+        try {
+            main.invokeExact(runtime, 0);
+        } catch (StackOverflowError e) {
+            // 编译后的过程调用使用 JVM 的调用栈, 递归过深时先于运行栈溢出
+            throw new StackOverflowException("Stack overflow: recursion too deep for the JVM thread stack");
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 生成并加载隐藏类, 代码中有无法编译的指令时抛出 UnsupportedOperationException
+    public void compile() {
+        List<Procedures.Procedure> all = new ArrayList<>();
+        for (Procedures.Procedure procedure : procedures) {
+            levels = Math.max(levels, procedure.level + 1);
+            all.add(procedure);
+        }
+        main = define(all, null, -1).get(procedures.main().entry);
+    }
+
+    // 分层执行时只编译入口为 entry 的过程和它直接或间接调用的过程, 返回各过程入口地址对应的方法.
+    // header >= 0 时另外生成从该过程的循环头 header 进入的方法 (栈上替换), 在返回的映射中以 header 为键
+    Map<Integer, MethodHandle> compile(int entry, int header) {
+        Procedures.Procedure root = procedures.get(entry);
+        Set<Procedures.Procedure> reachable = new LinkedHashSet<>();
+        Deque<Procedures.Procedure> work = new ArrayDeque<>();
+        work.push(root);
+        while (!work.isEmpty()) {
+            Procedures.Procedure procedure = work.pop();
+            if (reachable.add(procedure)) {
+                procedure.callees.forEach(work::push);
+            }
+        }
+        return define(reachable, header >= 0 ? root : null, header);
+    }
+
+    private Map<Integer, MethodHandle> define(Collection<Procedures.Procedure> selected, Procedures.Procedure osr, int header) {
+        if (escaping.isEmpty()) {
+            analyzeEscapes();
+        }
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int codeName = pool.utf8("Code");
+        List<byte[]> methods = new ArrayList<>();
+        for (Procedures.Procedure procedure : selected) {
+            methods.add(method(procedure, -1, pool, codeName));
+        }
+        if (osr != null) {
+            methods.add(method(osr, header, pool, codeName));
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            // 使用 49 版本的类文件格式, 不需要生成 StackMapTable
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.write(out);
+            // public final super
+            out.writeShort(0x0031);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes.toByteArray(), true);
+            MethodType type = MethodType.methodType(void.class, JitRuntime.class, int.class);
+            Map<Integer, MethodHandle> handles = new HashMap<>();
+            for (Procedures.Procedure procedure : selected) {
+                handles.put(procedure.entry, lookup.findStatic(lookup.lookupClass(), name(procedure), type));
+            }
+            if (osr != null) {
+                handles.put(header, lookup.findStatic(lookup.lookupClass(), "o" + header, type));
+            }
+            return handles;
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void analyzeEscapes() {
+        for (Procedures.Procedure procedure : procedures) {
+            escaping.put(procedure, new BitSet());
+        }
+        for (Procedures.Procedure procedure : procedures) {
+            for (int i = procedure.entry; i <= procedure.end; i++) {
+                int op = Opcode.op(code[i * Opcode.WIDTH]);
+                int difference = Opcode.level(code[i * Opcode.WIDTH]);
+                if (op == Opcode.LDG || op == Opcode.STG) {
+                    // 主程序的变量相当于层次差为当前层次
+                    difference = procedure.level;
+                }
+                if ((op == Opcode.LOD || op == Opcode.STO || op == Opcode.RED || op == Opcode.LDO
+                        || op == Opcode.LDG || op == Opcode.STG) && difference > 0) {
+                    Procedures.Procedure owner = procedure.ancestor(procedure.level - difference);
+                    escaping.get(owner).set(code[i * Opcode.WIDTH + 1]);
+                } else if ((op == Opcode.INC || op == Opcode.STL) && difference > 0) {
+                    Procedures.Procedure owner = procedure.ancestor(procedure.level - difference);
+                    escaping.get(owner).set(Opcode.extra(code[i * Opcode.WIDTH]));
+                }
+            }
+        }
+    }
+
+    private static String name(Procedures.Procedure procedure) {
+        return "p" + procedure.entry;
+    }
+
+    // header < 0 时生成过程本身的方法; 否则生成从循环头 header 进入的方法, 用于已经在解释执行的栈帧:
+    // 此时 display 已经登记了本层栈帧, 变量的当前值都在运行栈中, 操作数栈为空
+    private byte[] method(Procedures.Procedure procedure, int header, ConstantPool pool, int codeName) {
+        Bytecode b = new Bytecode();
+        BitSet escapes = escaping.get(procedure);
+        int entry = procedure.entry;
+        int[] offsets = new int[procedure.end - entry + 1];
+        // 需要回填的跳转: 跳转指令在字节码中的位置和目标 Pcode 地址
+        List<int[]> branches = new ArrayList<>();
+        BitSet targets = new BitSet();
+        for (int i = entry; i <= procedure.end; i++) {
+            int op = Opcode.op(code[i * Opcode.WIDTH]);
+            if (op == Opcode.JMP || op == Opcode.JPC || op == Opcode.JNC || op == Opcode.JLC) {
+                targets.set(code[i * Opcode.WIDTH + 1]);
+            }
+        }
+
+        // 序言: 确保栈帧在运行栈内, 缓存运行栈和 display, 登记本层栈帧基址并保存原值
+        b.u1(0x2a).load(0x15, BP_LOCAL).constant(procedure.size, pool);
+        b.u1(0xb6).u2(pool.methodRef(RUNTIME, "reserve", "(II)V"));
+        b.u1(0x2a).u1(0xb4).u2(pool.fieldRef(RUNTIME, "stack", "[I")).u1(0x3a).u1(STACK_LOCAL);
+        b.u1(0x2a).u1(0xb4).u2(pool.fieldRef(RUNTIME, "display", "[I")).u1(0x3a).u1(DISPLAY_LOCAL);
+        if (header < 0) {
+            b.load(0x19, DISPLAY_LOCAL).constant(procedure.level, pool).u1(0x2e).load(0x36, SAVED_LOCAL);
+            b.load(0x19, DISPLAY_LOCAL).constant(procedure.level, pool).load(0x15, BP_LOCAL).u1(0x4f);
+            // PL/0 的变量没有初值, 这里统一置 0 以满足字节码校验
+            for (int a = 3; a < procedure.size; a++) {
+                if (!escapes.get(a)) {
+                    b.u1(0x03).load(0x36, FIRST_VARIABLE + a - 3);
+                }
+            }
+        } else {
+            // 返回时由解释器执行 OPR 0 恢复 display, 这里保存的就是本层栈帧基址
+            b.load(0x15, BP_LOCAL).load(0x36, SAVED_LOCAL);
+            for (int a = 3; a < procedure.size; a++) {
+                if (!escapes.get(a)) {
+                    b.load(0x19, STACK_LOCAL).load(0x15, BP_LOCAL).constant(a, pool).u1(0x60).u1(0x2e);
+                    b.load(0x36, FIRST_VARIABLE + a - 3);
+                }
+            }
+            branches.add(new int[]{b.size, header});
+            b.u1(0xa7).u2(0);
+        }
+
+        int depth = 0, maxDepth = 0;
+        for (int i = entry; i <= procedure.end; i++) {
+            offsets[i - entry] = b.size;
+            int word = code[i * Opcode.WIDTH];
+            int argument = code[i * Opcode.WIDTH + 1];
+            int difference = Opcode.level(word);
+            switch (Opcode.op(word)) {
+                case Opcode.LIT:
+                    b.constant(argument, pool);
+                    depth++;
+                    break;
+                case Opcode.LOD:
+                    load(b, procedure, difference, argument, pool);
+                    depth++;
+                    break;
+                case Opcode.STO:
+                    store(b, procedure, difference, argument, pool);
+                    depth--;
+                    break;
+                case Opcode.LDG:
+                    load(b, procedure, procedure.level, argument, pool);
+                    depth++;
+                    break;
+                case Opcode.STG:
+                    store(b, procedure, procedure.level, argument, pool);
+                    depth--;
+                    break;
+                case Opcode.RED:
+                    b.u1(0x2a).u1(0xb6).u2(pool.methodRef(RUNTIME, "read", "()I"));
+                    store(b, procedure, difference, argument, pool);
+                    break;
+                case Opcode.WRT:
+                    b.u1(0x2a).u1(0x5f).u1(0xb6).u2(pool.methodRef(RUNTIME, "write", "(I)V"));
+                    depth--;
+                    break;
+                // 编译后的过程是 JVM 方法, 尾调用按普通调用翻译, 其后的返回指令照常执行; 只有调用自身的尾调用
+                // 翻译成跳回过程体开头, 不占用 JVM 调用栈. 被调过程在序言中自己分配栈帧, CLI 携带的栈帧大小不需要
+                case Opcode.CAL:
+                case Opcode.CLI:
+                case Opcode.TCL: {
+                    Procedures.Procedure callee = procedures.get(procedures.callee(i));
+                    if (Opcode.op(word) == Opcode.TCL && callee == procedure) {
+                        branches.add(new int[]{b.size, entry});
+                        b.u1(0xa7).u2(0);
+                        break;
+                    }
+                    // 被调过程的栈帧紧接在当前栈帧之后
+                    b.u1(0x2a).load(0x15, BP_LOCAL).constant(procedure.size, pool).u1(0x60);
+                    b.u1(0xb8).u2(pool.methodRef(CLASS_NAME, name(callee), DESCRIPTOR));
+                    b.u1(0x2a).u1(0xb4).u2(pool.fieldRef(RUNTIME, "stack", "[I")).u1(0x3a).u1(STACK_LOCAL);
+                    break;
+                }
+                case Opcode.INT:
+                    if (i != entry) {
+                        throw new UnsupportedOperationException("INT inside procedure body at " + i);
+                    }
+                    break;
+                case Opcode.JMP:
+                    branches.add(new int[]{b.size, argument});
+                    b.u1(0xa7).u2(0);
+                    break;
+                case Opcode.JPC:
+                    branches.add(new int[]{b.size, argument});
+                    b.u1(0x99).u2(0);
+                    depth--;
+                    break;
+                case Opcode.OPR:
+                    if (argument == 0) {
+                        b.load(0x19, DISPLAY_LOCAL).constant(procedure.level, pool).load(0x15, SAVED_LOCAL).u1(0x4f);
+                        b.u1(0xb1);
+                    } else if (argument == 1) {
+                        b.u1(0x74);
+                    } else if (argument == 6) {
+                        // odd 只测试最低位
+                        b.u1(0x04).u1(0x7e);
+                    } else if (argument >= 8 && argument <= 13
+                            && Opcode.op(code[(i + 1) * Opcode.WIDTH]) == Opcode.JPC && !targets.get(i + 1)) {
+                        // 比较后紧跟条件跳转, 直接生成 if_icmp
+                        branches.add(new int[]{b.size, code[(i + 1) * Opcode.WIDTH + 1]});
+                        b.u1(NEGATED[argument - 8]).u2(0);
+                        depth -= 2;
+                        i++;
+                        offsets[i - entry] = b.size;
+                    } else if (isBinary(argument)) {
+                        binary(b, argument);
+                        depth--;
+                    } else {
+                        throw new UnsupportedOperationException("OPR " + argument);
+                    }
+                    break;
+                case Opcode.INC:
+                    load(b, procedure, difference, Opcode.extra(word), pool);
+                    b.constant(argument, pool).u1(0x60);
+                    store(b, procedure, difference, Opcode.extra(word), pool);
+                    break;
+                case Opcode.STL:
+                    b.constant(argument, pool);
+                    store(b, procedure, difference, Opcode.extra(word), pool);
+                    break;
+                case Opcode.LDO:
+                    if (!isBinary(Opcode.extra(word))) {
+                        throw new UnsupportedOperationException("LDO " + Opcode.extra(word));
+                    }
+                    load(b, procedure, difference, argument, pool);
+                    binary(b, Opcode.extra(word));
+                    break;
+                case Opcode.LTO:
+                    if (!isBinary(difference)) {
+                        throw new UnsupportedOperationException("LTO " + difference);
+                    }
+                    b.constant(argument, pool);
+                    binary(b, difference);
+                    break;
+                case Opcode.JNC:
+                    branches.add(new int[]{b.size + (difference == 6 ? 2 : 0), argument});
+                    if (difference == 6) {
+                        b.u1(0x04).u1(0x7e).u1(0x99).u2(0);
+                        depth--;
+                    } else {
+                        b.u1(NEGATED[difference - 8]).u2(0);
+                        depth -= 2;
+                    }
+                    break;
+                case Opcode.JLC:
+                    b.constant(Opcode.extra(word), pool);
+                    branches.add(new int[]{b.size, argument});
+                    b.u1(NEGATED[difference - 8]).u2(0);
+                    depth--;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("JIT does not support " + Opcode.code(word));
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        for (int[] branch : branches) {
+            int offset = offsets[branch[1] - entry] - branch[0];
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new UnsupportedOperationException("Procedure too large");
+            }
+            b.patch(branch[0] + 1, offset);
+        }
+        if (b.size > 65535) {
+            throw new UnsupportedOperationException("Procedure too large");
+        }
+
+        Bytecode method = new Bytecode();
+        // public static
+        String name = header < 0 ? name(procedure) : "o" + header;
+        method.u2(0x0009).u2(pool.utf8(name)).u2(pool.utf8(DESCRIPTOR)).u2(1);
+        method.u2(codeName).u4(12 + b.size).u2(maxDepth + 4).u2(FIRST_VARIABLE + Math.max(0, procedure.size - 3));
+        method.u4(b.size).bytes(b).u2(0).u2(0);
+        return Arrays.copyOf(method.buffer, method.size);
+    }
+
+    private static boolean isBinary(int operator) {
+        return operator >= 2 && operator <= 5 || operator >= 8 && operator <= 14;
+    }
+
+    // 两个操作数已经在操作数栈顶, 比较的结果为 0 或 1
+    private static void binary(Bytecode b, int operator) {
+        if (operator == 14) {
+            b.u1(0x78);
+        } else if (operator >= 8) {
+            b.u1(COMPARE[operator - 8]).u2(7).u1(0x03).u1(0xa7).u2(4).u1(0x04);
+        } else {
+            b.u1(new int[]{0x60, 0x64, 0x68, 0x6c}[operator - 2]);
+        }
+    }
+
+    // 栈帧基址: 本层直接取 bp, 外层从 display 中取
+    private void frameBase(Bytecode b, Procedures.Procedure procedure, int difference, ConstantPool pool) {
+        if (difference == 0) {
+            b.load(0x15, BP_LOCAL);
+        } else if (difference == procedure.level) {
+            // 主程序的栈帧基址总是 0
+            b.u1(0x03);
+        } else {
+            b.load(0x19, DISPLAY_LOCAL).constant(procedure.level - difference, pool).u1(0x2e);
+        }
+    }
+
+    private void load(Bytecode b, Procedures.Procedure procedure, int difference, int address, ConstantPool pool) {
+        if (difference == 0 && !escaping.get(procedure).get(address)) {
+            b.load(0x15, FIRST_VARIABLE + address - 3);
+        } else {
+            b.load(0x19, STACK_LOCAL);
+            frameBase(b, procedure, difference, pool);
+            b.constant(address, pool).u1(0x60).u1(0x2e);
+        }
+    }
+
+    // 要保存的值已经在操作数栈顶
+    private void store(Bytecode b, Procedures.Procedure procedure, int difference, int address, ConstantPool pool) {
+        if (difference == 0 && !escaping.get(procedure).get(address)) {
+            b.load(0x36, FIRST_VARIABLE + address - 3);
+        } else {
+            b.load(0x19, STACK_LOCAL).u1(0x5f);
+            frameBase(b, procedure, difference, pool);
+            b.constant(address, pool).u1(0x60).u1(0x5f).u1(0x4f);
+        }
+    }
+
+    private static class Bytecode {
+        byte[] buffer = new byte[256];
+        int size;
+
+        Bytecode u1(int value) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+            }
+            buffer[size++] = (byte) value;
+            return this;
+        }
+
+        Bytecode u2(int value) {
+            return u1(value >> 8).u1(value);
+        }
+
+        Bytecode u4(int value) {
+            return u2(value >> 16).u2(value);
+        }
+
+        Bytecode bytes(Bytecode other) {
+            for (int i = 0; i < other.size; i++) {
+                u1(other.buffer[i]);
+            }
+            return this;
+        }
+
+        void patch(int position, int value) {
+            buffer[position] = (byte) (value >> 8);
+            buffer[position + 1] = (byte) value;
+        }
+
+        // 读写局部变量, 下标超过 255 时使用 wide 前缀
+        Bytecode load(int opcode, int index) {
+            if (index > 255) {
+                return u1(0xc4).u1(opcode).u2(index);
+            }
+            return u1(opcode).u1(index);
+        }
+
+        Bytecode constant(int value, ConstantPool pool) {
+            if (value >= -1 && value <= 5) {
+                return u1(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                return u1(0x10).u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                return u1(0x11).u2(value);
+            }
+            return u1(0x13).u2(pool.integer(value));
+        }
+    }
+
+    private static class ConstantPool {
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count = 1;
+
+        private int add(String key, int tag, int... values) {
+            Integer index = indices.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                if (tag == 3) {
+                    out.writeInt(values[0]);
+                } else {
+                    for (int value : values) {
+                        out.writeShort(value);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            indices.put(key, count);
+            return count++;
+        }
+
+        int utf8(String value) {
+            Integer index = indices.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            indices.put("U" + value, count);
+            return count++;
+        }
+
+        int integer(int value) {
+            return add("I" + value, 3, value);
+        }
+
+        int classRef(String name) {
+            return add("C" + name, 7, utf8(name));
+        }
+
+        int nameAndType(String name, String descriptor) {
+            return add("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return add("F" + owner + "." + name + ":" + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return add("M" + owner + "." + name + ":" + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        void write(DataOutputStream stream) throws IOException {
+            stream.writeShort(count);
+            stream.write(bytes.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package compiler;
+
+// 编译后的代码运行时使用的状态: 存放逃逸变量的运行栈, 各层栈帧基址组成的 display, 以及输入输出
+final class JitRuntime {
+    int[] stack;
+    int[] display;
+    private IntReader in;
+    private IntWriter out;
+    private int limit;
+
+    JitRuntime(int stackSize, int limit, int levels, IntReader in, IntWriter out) {
+        this.stack = new int[stackSize];
+        this.limit = limit;
+        this.display = new int[levels];
+        this.in = in;
+        this.out = out;
+    }
+
+    // 分层执行时和解释器共用 display, 每次进入编译后的代码前再设置运行栈
+    JitRuntime(int[] display, int limit, IntReader in, IntWriter out) {
+        this.display = display;
+        this.limit = limit;
+        this.in = in;
+        this.out = out;
+    }
+
+    // 编译后的过程在序言中调用, 保证栈帧 [bp, bp + size) 在运行栈内
+    void reserve(int bp, int size) {
+        if (bp + size > stack.length) {
+            stack = Interpreter.grow(stack, bp + size, limit);
+        }
+    }
+
+    int read() {
+        return in.nextInt();
+    }
+
+    void write(int value) {
+        out.write(value);
+    }
+}
@@ -1,101 +1,232 @@
 package compiler;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
+// 源程序放在字符数组 buffer 中用下标扫描, 单词直接从数组中截取, 不再逐个字符经过 Reader 读取和回退.
+// 网页输入直接使用整个字符数组; 文件映射到内存, Reader 按块读取, 二者都只在扫描到缓冲区末尾时再解码或读入一块,
+// 缓冲区中只保留正在扫描的单词.
+// 调用 lex() 时一次扫描出全部单词; 不调用 lex() 时, nextToken() 在语法分析需要时才扫描下一个单词,
+// 内存占用与源程序长度无关, 词法错误在 finish() 中按出现的顺序一起报告.
+// 标识符和保留字由 Interner 转换为整数编号, 同名的标识符只创建一次字符串.
+// 扫描由确定有限自动机驱动: ASCII 字符直接查转移表, 其他字符才按 Unicode 属性判断类别;
+// 保留字用完美散列直接在字符数组上查找, 不创建字符串
 public class Lexer {
-    private PushbackReader reader;
+    // 文件或 Reader 每次读入的字符数
+    private static final int BLOCK = 1 << 16;
+    // 字符类别
+    private static final int LETTER = 0, ZERO = 1, DIGIT = 2, SPACE = 3, NEWLINE = 4, COLON = 5, LESS = 6,
+            GREATER = 7, EQUAL = 8, OTHER = 9, TYPES = 10;
+    // 自动机的状态, 除 START 外都是接受状态; DONE 表示没有转移, 当前单词结束
+    private static final int START = 0, IDENTIFIER = 1, ZERO_NUMBER = 2, NUMBER = 3, COLON_ONLY = 4, ASSIGN = 5,
+            LESS_THAN = 6, LESS_EQUAL = 7, UNEQUAL = 8, GREATER_THAN = 9, GREATER_EQUAL = 10, SINGLE = 11,
+            STATES = 12, DONE = -1;
+    private static final byte[] CLASSES = new byte[128];
+    // TRANSITIONS[state * TYPES + type] 为下一个状态
+    private static final byte[] TRANSITIONS = new byte[STATES * TYPES];
+    // 合并了 CLASSES 的转移表, ASCII 字符直接以 ASCII[state << 7 | c] 得到下一个状态
+    private static final byte[] ASCII = new byte[STATES << 7];
+    // 运算符状态对应的单词和种类
+    private static final String[] WORDS = new String[STATES];
+    private static final Symbol[] SYMBOLS = new Symbol[STATES];
+    // 单个 ASCII 字符组成的单词共用的字符串
+    private static final String[] CHARACTERS = new String[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            CLASSES[c] = (byte) classify(c);
+            CHARACTERS[c] = String.valueOf(c);
+        }
+        Arrays.fill(TRANSITIONS, (byte) DONE);
+        transition(START, SPACE, START);
+        transition(START, NEWLINE, START);
+        transition(START, LETTER, IDENTIFIER);
+        transition(START, ZERO, ZERO_NUMBER);
+        transition(START, DIGIT, NUMBER);
+        transition(START, COLON, COLON_ONLY);
+        transition(START, LESS, LESS_THAN);
+        transition(START, GREATER, GREATER_THAN);
+        transition(START, EQUAL, SINGLE);
+        transition(START, OTHER, SINGLE);
+        transition(IDENTIFIER, LETTER, IDENTIFIER);
+        transition(IDENTIFIER, ZERO, IDENTIFIER);
+        transition(IDENTIFIER, DIGIT, IDENTIFIER);
+        transition(NUMBER, ZERO, NUMBER);
+        transition(NUMBER, DIGIT, NUMBER);
+        transition(COLON_ONLY, EQUAL, ASSIGN);
+        transition(LESS_THAN, GREATER, UNEQUAL);
+        transition(LESS_THAN, EQUAL, LESS_EQUAL);
+        transition(GREATER_THAN, EQUAL, GREATER_EQUAL);
+        word(COLON_ONLY, ":", Symbol.None);
+        word(ASSIGN, ":=", Symbol.Assign);
+        word(LESS_THAN, "<", Symbol.Less);
+        word(LESS_EQUAL, "<=", Symbol.LessEqual);
+        word(UNEQUAL, "<>", Symbol.Unequal);
+        word(GREATER_THAN, ">", Symbol.Greater);
+        word(GREATER_EQUAL, ">=", Symbol.GreaterEqual);
+        for (int state = 0; state < STATES; state++) {
+            for (int c = 0; c < 128; c++) {
+                ASCII[state << 7 | c] = TRANSITIONS[state * TYPES + CLASSES[c]];
+            }
+        }
+    }
+
+    private static void transition(int state, int type, int next) {
+        TRANSITIONS[state * TYPES + type] = (byte) next;
+    }
+
+    private static void word(int state, String word, Symbol symbol) {
+        WORDS[state] = word;
+        SYMBOLS[state] = symbol;
+    }
+
+    private char[] buffer;
+    // 已读入的字符为 buffer[0, end), pos 为下一个要扫描的字符, start 为当前单词的开头
+    private int pos, end, start;
+    // 尚未解码的文件内容, 或尚未读完的 Reader, 都为 null 时 buffer 中就是全部输入
+    private ByteBuffer bytes;
+    private CharsetDecoder decoder;
+    private Reader reader;
     private ArrayList<Token> table;
     private ArrayList<String> errors;
+    private Interner interner;
     private int line;
     private Iterator<Token> iterator;
+    // 按需扫描时预读的一个单词
+    private Token lookahead;
 
-    public Lexer(String filename) throws FileNotFoundException {
-        this.reader = new PushbackReader(new FileReader(filename), 10);
+    public Lexer(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            // 映射在通道关闭后仍然有效
+            this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException error) {
+            throw new FileNotFoundException(filename);
+        }
+        // 与 FileReader 一样使用默认字符集, 无法解码的字节替换为替换字符
+        this.decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = new char[BLOCK];
+        init();
+    }
+
+    public Lexer(char[] source) {
+        this.buffer = source;
+        this.end = source.length;
         init();
     }
 
     public Lexer(BufferedReader reader) {
-        this.reader = new PushbackReader(reader, 10);
+        this.reader = reader;
+        this.buffer = new char[BLOCK];
+        init();
+    }
+
+    // 增量编译时从 source[offset] 开始重新扫描, 所在行为 line, 与之前扫描出的单词共用标识符的编号
+    Lexer(char[] source, int length, int offset, int line, Interner interner) {
+        this.buffer = source;
+        this.end = length;
+        this.pos = offset;
         init();
+        this.interner = interner;
+        this.line = line;
+    }
+
+    // 直接使用已经扫描好的单词
+    Lexer(List<Token> tokens) {
+        init();
+        this.iterator = tokens.iterator();
     }
 
     private void init() {
         this.table = new ArrayList<>();
         this.errors = new ArrayList<>();
+        this.interner = new Interner();
         line = 1;
     }
 
-    private String readIdentifier() throws IOException {
-        StringBuilder res = new StringBuilder();
-        int c = reader.read();
-        while (Character.isLetter(c) || Character.isDigit(c)) {
-            res.append((char) c);
-            c = reader.read();
-        }
-        reader.unread(c);
-        return res.toString();
-    }
-
-    private String readNumber() throws IOException {
-        StringBuilder res = new StringBuilder();
-        int c = reader.read();
-        if (c == '0') {
-            // 如果以0开头, 直接返回
-            return "0";
+    // 已读入的字符扫描完时再读入一块, 当前单词已扫描的部分移到缓冲区开头. 没有更多输入时返回 false
+    private boolean fill() throws IOException {
+        if (bytes == null && reader == null) {
+            return false;
         }
-        while (Character.isDigit(c)) {
-            res.append((char) c);
-            c = reader.read();
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            pos -= start;
+            start = 0;
         }
-        reader.unread(c);
-        String s = res.toString();
-        try {
-            Integer.parseInt(s);
-        } catch (NumberFormatException error) {
-            errors.add(String.format("Line %d: %s 这个数太大", line, s));
-        }
-        return s;
-    }
-
-    private String readLess() throws IOException {
-        int c = reader.read();
-        int next = reader.read();
-        if (next == '>') {
-            return "<>";
-        } else if (next == '=') {
-            return "<=";
-        } else {
-            reader.unread(next);
-            return "<";
+        int before = end;
+        while (end == before) {
+            if (buffer.length - end < 2) {
+                // 单词几乎占满了缓冲区
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            if (reader != null) {
+                int n = reader.read(buffer, end, buffer.length - end);
+                if (n == -1) {
+                    reader.close();
+                    reader = null;
+                    return false;
+                }
+                end += n;
+            } else {
+                CharBuffer out = CharBuffer.wrap(buffer, end, buffer.length - end);
+                decoder.decode(bytes, out, true);
+                if (!bytes.hasRemaining()) {
+                    decoder.flush(out);
+                    bytes = null;
+                }
+                end = out.position();
+                if (bytes == null) {
+                    return end > before;
+                }
+            }
         }
+        return true;
     }
 
-    private String readGreater() throws IOException {
-        int c = reader.read();
-        int next = reader.read();
-        if (next == '=') {
-            return ">=";
-        } else {
-            reader.unread(next);
-            return ">";
+    // 字符的类别, 与逐个字符判断时的规则相同: 字母开头, 字母或数字组成标识符; 单独的 0 是一个数
+    private static int classify(char c) {
+        if (c == '\n') {
+            return NEWLINE;
+        } else if (Character.isWhitespace(c)) {
+            return SPACE;
+        } else if (Character.isLetter(c)) {
+            return LETTER;
+        } else if (c == '0') {
+            return ZERO;
+        } else if (Character.isDigit(c)) {
+            return DIGIT;
         }
-    }
-
-    private String readColon() throws IOException{
-        int c = reader.read();
-        int next = reader.read();
-        if (next == '=') {
-            return ":=";
+        switch (c) {
+            case ':':
+                return COLON;
+            case '<':
+                return LESS;
+            case '>':
+                return GREATER;
+            case '=':
+                return EQUAL;
+            default:
+                return OTHER;
         }
-        reader.unread(next);
-        return ":";
     }
 
-    private Symbol HandleSingleChar() throws IOException {
-        int c = reader.read();
+    private Symbol HandleSingleChar(char c) {
         Symbol symbol = Symbol.None;
         switch (c) {
             case '(':
@@ -129,69 +260,109 @@ public class Lexer {
                 symbol = Symbol.Comma;
                 break;
             default:
-                if (c != -1 && c != 65535)
+                if (c != 65535)
                     errors.add(String.format("Line %d: %c不是合法的字符.", line, c));
         }
         return symbol;
     }
 
-    public void lex() throws IOException, LexException {
-        int c;
-        String word;
-        Symbol symbol = Symbol.None;
-        while ((c = reader.read()) != -1) {
-            while (Character.isWhitespace(c)) {
-                if (c == '\n') {
-                    line++;
+    // 扫描下一个单词, 输入结束时返回 null. 按转移表从 START 状态逐个字符转移, 没有转移时当前状态就是单词的种类
+    private Token scan() throws IOException {
+        int state = START;
+        start = pos;
+        // 扫描时只使用局部变量, 到达已读入的字符末尾时才同步回字段并读入下一块
+        char[] chars = buffer;
+        int p = pos, limit = end;
+        while (true) {
+            if (p == limit) {
+                pos = p;
+                if (!fill()) {
+                    // 输入结束时所有状态都没有转移. fill() 可能已经把当前单词移到缓冲区开头, 位置以 pos 为准
+                    p = pos;
+                    break;
                 }
-                c = reader.read();
+                chars = buffer;
+                p = pos;
+                limit = end;
             }
-            // 当读到末尾时，跳出循环
-            if (c == -1) break;
-            reader.unread(c);
-            if (Character.isLetter(c)) {
-                word = readIdentifier();
-                // 如果不在保留字表里，则说明是标识符
-                symbol = Token.getKeywordSymbol(word);
-                if (symbol == Symbol.None) {
-                    symbol = Symbol.Identifier;
+            char c = chars[p];
+            // 非 ASCII 字符才按 Unicode 属性分类
+            int next = c < 128 ? ASCII[state << 7 | c] : TRANSITIONS[state * TYPES + classify(c)];
+            if (next == DONE) {
+                break;
+            }
+            p++;
+            if (next == START) {
+                // 跳过空白
+                if (c == '\n') {
+                    line++;
                 }
-            } else if (Character.isDigit(c)) {
-                word = readNumber();
-                // 有无小数点
-                if (word.indexOf('.') != -1) {
-                    symbol = Symbol.Float;
-                } else {
-                    symbol = Symbol.Integer;
+                start = p;
+            } else if (next == state) {
+                // 标识符和数的其余字符停留在同一状态, 连续的 ASCII 字符不再回到循环开头
+                while (p < limit && chars[p] < 128 && ASCII[state << 7 | chars[p]] == state) {
+                    p++;
                 }
-            } else if (c == ':') {
-                word = readColon();
-                if (word.length() == 2) {
-                    symbol = Symbol.Assign;
+            }
+            state = next;
+        }
+        pos = p;
+        int length = pos - start;
+        String word;
+        Symbol symbol;
+        int id = -1;
+        switch (state) {
+            case START:
+                return null;
+            case IDENTIFIER:
+                id = Token.keyword(buffer, start, length);
+                if (id >= 0) {
+                    word = Token.KEYWORDS[id];
+                    symbol = Token.getKeywordSymbol(id);
                 } else {
-                    errors.add(String.format("Line %d: %c不是合法的字符.", line, c)) ;
+                    // 如果不在保留字表里，则说明是标识符
+                    id = interner.intern(buffer, start, length);
+                    word = interner.name(id);
+                    symbol = Symbol.Identifier;
                 }
-            } else if (c == '<') {
-                word = readLess();
-                if (word.length() < 2) {
-                    symbol = Symbol.Less;
-                } else if (word.charAt(1) == '>') {
-                    symbol = Symbol.Unequal;
-                } else {
-                    symbol = Symbol.LessEqual;
+                break;
+            case ZERO_NUMBER:
+                // 如果以0开头, 直接返回
+                word = "0";
+                symbol = Symbol.Integer;
+                break;
+            case NUMBER:
+                word = new String(buffer, start, length);
+                symbol = Symbol.Integer;
+                // 不超过 9 位的数不会溢出
+                if (length > 9) {
+                    try {
+                        Integer.parseInt(word);
+                    } catch (NumberFormatException error) {
+                        errors.add(String.format("Line %d: %s 这个数太大", line, word));
+                    }
                 }
-            } else if (c == '>') {
-                word = readGreater();
-                if (word.length() < 2) {
-                    symbol = Symbol.Greater;
-                } else {
-                    symbol = Symbol.GreaterEqual;
+                break;
+            case SINGLE:
+                char c = buffer[start];
+                word = c < 128 ? CHARACTERS[c] : String.valueOf(c);
+                symbol = HandleSingleChar(c);
+                break;
+            default:
+                word = WORDS[state];
+                symbol = SYMBOLS[state];
+                if (state == COLON_ONLY) {
+                    errors.add(String.format("Line %d: %c不是合法的字符.", line, ':'));
                 }
-            } else {
-                word = Character.toString((char) c);
-                symbol = HandleSingleChar();
-            }
-            table.add(new Token(word, symbol, line));
+        }
+        return new Token(word, id, symbol, line);
+    }
+
+    // 预先扫描出全部单词放入单词表 (SimpleFrame 显示单词表时使用); LexerBenchmark -batch 用它与按需扫描比较
+    public void lex() throws IOException, LexException {
+        Token token;
+        while ((token = scan()) != null) {
+            table.add(token);
         }
         // 词法分析结束时才将错误抛出
         iterator = table.iterator();
@@ -199,18 +370,81 @@ public class Lexer {
             iterator = null;
             throw new LexException(errors);
         }
-        reader.close();
+    }
+
+    // 按需扫描时, 语法分析结束后扫描剩余的输入, 有词法错误时按出现的顺序抛出. 调用过 lex() 时什么也不做
+    public void finish() throws LexException {
+        if (iterator != null) {
+            return;
+        }
+        try {
+            Token token = scan();
+            while (token != null) {
+                token = scan();
+            }
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        if (errors.size() != 0) {
+            throw new LexException(errors);
+        }
     }
 
     public Token nextToken() {
-        return iterator.next();
+        if (iterator != null) {
+            return iterator.next();
+        }
+        if (!hasNextToken()) {
+            throw new NoSuchElementException();
+        }
+        Token token = lookahead;
+        lookahead = null;
+        return token;
     }
 
     public boolean hasNextToken() {
-        return iterator.hasNext();
+        if (iterator != null) {
+            return iterator.hasNext();
+        }
+        if (lookahead == null) {
+            try {
+                lookahead = scan();
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+        return lookahead != null;
     }
 
     public ArrayList<Token> getTable() {
         return table;
     }
-}
\ No newline at end of file
+
+    // 增量编译时扫描下一个单词, 输入结束时返回 null, 单词在源程序中的位置由 tokenStart() 给出
+    Token scanToken() {
+        try {
+            return scan();
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    int tokenStart() {
+        return start;
+    }
+
+    // 扫描这个单词时是否报告了词法错误
+    static boolean isError(Token token) {
+        if (token.symbol == Symbol.None) {
+            return token.name.charAt(0) != 65535;
+        }
+        if (token.symbol == Symbol.Integer && token.name.length() > 9) {
+            try {
+                Integer.parseInt(token.name);
+            } catch (NumberFormatException error) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,142 @@
+package compiler;
+
+import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// 词法分析的基准测试, 只使用 Lexer 最早就有的公开接口, 可以复制到以前的版本中编译, 与当前的扫描器比较:
+//   java compiler.LexerBenchmark [-passes=N] [-runs=N] [-batch] [-file | -chars] 文件...
+// 每轮把所有文件各扫描 passes 遍, 共 runs 轮, 前几轮用来预热, 报告其余各轮的耗时和最快的一轮.
+// 默认按需取单词 (hasNextToken/nextToken, 不调用 lex(), 需要能按需扫描的 Lexer), -batch 时先用 lex() 扫描出全部单词.
+// 源程序默认预先读入内存, 经 BufferedReader 交给 Lexer; -file 时每遍都由 Lexer 自己打开文件;
+// -chars 时直接把字符数组交给 Lexer(char[]) (需要有这个构造函数的 Lexer, 通过反射调用, 以便在更早的版本中也能编译).
+// 最后报告扫描完一个文件后 Lexer 仍然占用的堆内存.
+//   java compiler.LexerBenchmark -generate=文件 [行数]
+// 生成测试用的大程序: 主程序中重复的赋值和条件语句, 数字随机, 默认 200000 行 (约 11 MB)
+public class LexerBenchmark {
+    private static final int WARMUP = 5;
+    private static Constructor<Lexer> chars;
+
+    public static void main(String[] args) throws IOException {
+        int passes = 1, runs = 15;
+        boolean batch = false, file = false;
+        String generate = null;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-passes=")) {
+                passes = Integer.parseInt(arg.substring("-passes=".length()));
+            } else if (arg.startsWith("-runs=")) {
+                runs = Integer.parseInt(arg.substring("-runs=".length()));
+            } else if (arg.equals("-batch")) {
+                batch = true;
+            } else if (arg.equals("-file")) {
+                file = true;
+            } else if (arg.equals("-chars")) {
+                try {
+                    chars = Lexer.class.getConstructor(char[].class);
+                } catch (NoSuchMethodException e) {
+                    System.err.println("-chars: 这个版本的 Lexer 没有 Lexer(char[])");
+                    return;
+                }
+            } else if (arg.startsWith("-generate=")) {
+                generate = arg.substring("-generate=".length());
+            } else {
+                files.add(arg);
+            }
+        }
+        if (generate != null) {
+            generate(generate, files.isEmpty() ? 200000 : Integer.parseInt(files.get(0)));
+            return;
+        }
+        List<char[]> sources = new ArrayList<>();
+        long chars = 0;
+        for (String name : files) {
+            char[] source = new String(Files.readAllBytes(Paths.get(name)), Charset.defaultCharset()).toCharArray();
+            sources.add(source);
+            chars += source.length;
+        }
+
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < runs; r++) {
+            long start = System.nanoTime(), tokens = 0;
+            for (int k = 0; k < passes; k++) {
+                for (int i = 0; i < files.size(); i++) {
+                    tokens += count(open(files.get(i), sources.get(i), file), batch);
+                }
+            }
+            double time = (System.nanoTime() - start) / 1e6;
+            if (r >= Math.min(WARMUP, runs - 1)) {
+                best = Math.min(best, time);
+                System.out.printf("%d tokens %.1f ms %.1f MB/s%n", tokens, time, chars * passes / time / 1e3);
+            }
+        }
+        System.out.printf("best %.1f ms%n", best);
+
+        // 扫描完最大的一个文件后, Lexer 本身 (单词表, 缓冲区等) 仍然占用的堆内存
+        int largest = 0;
+        for (int i = 1; i < sources.size(); i++) {
+            if (sources.get(i).length > sources.get(largest).length) {
+                largest = i;
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        Lexer lexer = open(files.get(largest), sources.get(largest), file);
+        count(lexer, batch);
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        System.out.printf("retained %.1f MB after lexing %s%n", (after - before) / 1e6, files.get(largest));
+        // 保证测量时 lexer 仍然可达
+        Reference.reachabilityFence(lexer);
+    }
+
+    private static Lexer open(String name, char[] source, boolean file) throws IOException {
+        if (file) {
+            return new Lexer(name);
+        }
+        if (chars != null) {
+            try {
+                return chars.newInstance((Object) source);
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return new Lexer(new BufferedReader(new CharArrayReader(source)));
+    }
+
+    private static long count(Lexer lexer, boolean batch) throws IOException {
+        if (batch) {
+            try {
+                lexer.lex();
+            } catch (LexException error) {
+                // 有词法错误时单词仍然都扫描过了
+            }
+            return lexer.getTable().size();
+        }
+        long tokens = 0;
+        while (lexer.hasNextToken()) {
+            lexer.nextToken();
+            tokens++;
+        }
+        return tokens;
+    }
+
+    private static void generate(String name, int lines) throws IOException {
+        Random random = new Random(1);
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(name))) {
+            out.write("var a, b, c, d, e;\nbegin\n");
+            for (int i = 0; i < lines; i++) {
+                out.write("  a := b * " + random.nextInt(100000) + " + (c - d) / 7; if a >= b then c := c + 1;\n");
+            }
+            out.write("  write(a)\nend.");
+        }
+    }
+}
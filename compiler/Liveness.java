@@ -0,0 +1,127 @@
+package compiler;
+
+import java.util.BitSet;
+
+// 过程内本层栈帧单元的活跃变量分析. 单元按地址编号, 只考虑用层次差 0 (主程序中还有 LDG/STG) 访问的单元;
+// 调用不会访问本层单元, 除非被调用的是内层过程, 这些单元由 escaping 给出, 使用者需要把它们排除在外
+final class Liveness {
+    private final Procedures.Procedure procedure;
+    // 每条指令之前和之后活跃的单元, 下标为相对过程入口的偏移
+    private final BitSet[] liveIn, liveOut;
+
+    Liveness(int[] code, Procedures.Procedure procedure) {
+        this.procedure = procedure;
+        int size = procedure.end - procedure.entry + 1;
+        liveIn = new BitSet[size];
+        liveOut = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            liveIn[i] = new BitSet();
+            liveOut[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = procedure.end; i >= procedure.entry; i--) {
+                int index = i - procedure.entry;
+                int word = code[i * Opcode.WIDTH];
+                int op = Opcode.op(word);
+                BitSet out = new BitSet();
+                // 返回和尾调用之后本层栈帧不再使用
+                if (!(op == Opcode.OPR && code[i * Opcode.WIDTH + 1] == 0) && op != Opcode.TCL) {
+                    if (op != Opcode.JMP && i < procedure.end) {
+                        out.or(liveIn[index + 1]);
+                    }
+                    if (Opcode.isJump(op) && !Opcode.isCall(op)) {
+                        out.or(liveIn[code[i * Opcode.WIDTH + 1] - procedure.entry]);
+                    }
+                }
+                BitSet in = (BitSet) out.clone();
+                int written = access(code, i, procedure, true);
+                if (written >= 0) {
+                    in.clear(written);
+                }
+                int read = access(code, i, procedure, false);
+                if (read >= 0) {
+                    in.set(read);
+                }
+                liveOut[index] = out;
+                if (!in.equals(liveIn[index])) {
+                    liveIn[index] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // 地址为 index 的指令执行之前活跃的单元
+    BitSet liveIn(int index) {
+        return liveIn[index - procedure.entry];
+    }
+
+    BitSet liveOut(int index) {
+        return liveOut[index - procedure.entry];
+    }
+
+    // 指令写 (write 为 true) 或读的本层单元, 不访问本层单元时返回 -1
+    static int access(int[] code, int index, Procedures.Procedure procedure, boolean write) {
+        int word = code[index * Opcode.WIDTH];
+        int argument = code[index * Opcode.WIDTH + 1];
+        int op = Opcode.op(word);
+        boolean local = Opcode.level(word) == 0;
+        switch (op) {
+            case Opcode.STO:
+            case Opcode.RED:
+                return write && local ? argument : -1;
+            case Opcode.LOD:
+            case Opcode.LDO:
+                return !write && local ? argument : -1;
+            case Opcode.STG:
+                return write && procedure.level == 0 ? argument : -1;
+            case Opcode.LDG:
+                return !write && procedure.level == 0 ? argument : -1;
+            case Opcode.STL:
+                return write && local ? Opcode.extra(word) : -1;
+            case Opcode.INC:
+                return local ? Opcode.extra(word) : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // 被内层过程访问的本层单元
+    static BitSet escaping(int[] code, Procedures procedures, Procedures.Procedure procedure) {
+        BitSet escaping = new BitSet();
+        for (Procedures.Procedure inner : procedures) {
+            if (inner.level <= procedure.level || inner.ancestor(procedure.level) != procedure) {
+                continue;
+            }
+            for (int i = inner.entry + 1; i < inner.end; i++) {
+                int word = code[i * Opcode.WIDTH];
+                int argument = code[i * Opcode.WIDTH + 1];
+                switch (Opcode.op(word)) {
+                    case Opcode.LOD:
+                    case Opcode.STO:
+                    case Opcode.RED:
+                    case Opcode.LDO:
+                        if (inner.level - Opcode.level(word) == procedure.level) {
+                            escaping.set(argument);
+                        }
+                        break;
+                    case Opcode.INC:
+                    case Opcode.STL:
+                        if (inner.level - Opcode.level(word) == procedure.level) {
+                            escaping.set(Opcode.extra(word));
+                        }
+                        break;
+                    case Opcode.LDG:
+                    case Opcode.STG:
+                        if (procedure.level == 0) {
+                            escaping.set(argument);
+                        }
+                        break;
+                }
+            }
+        }
+        return escaping;
+    }
+}
@@ -0,0 +1,358 @@
+package compiler;
+
+import java.util.*;
+
+// 循环不变量外提: 找出 while 和 repeat 循环中只读取循环内 (包括循环中调用的过程) 不会写的变量的表达式,
+// 在循环入口前算好存入栈帧末尾新增的单元, 循环中改为读取这个单元.
+// 外提的表达式在循环一次也不执行时也会被计算, 因此除数不是非零常数的除法不外提
+public class LoopInvariantOptimizer implements Pass {
+    // 每轮先处理最外层含有不变量的循环, 内层循环剩下的不变量在下一轮处理
+    private static final int ROUNDS = 8;
+    private int expressions, loops;
+
+    public LoopInvariantOptimizer() {
+    }
+
+    // 返回外提的表达式个数
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int total = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            int count = hoist(interpreter);
+            if (count == 0) {
+                break;
+            }
+            total += count;
+        }
+        expressions += total;
+        return total;
+    }
+
+    private static final class Loop {
+        // 循环头和最后一条跳回循环头的指令, 循环即 [header, end]
+        final int header, end;
+        final Procedures.Procedure procedure;
+        // 外提的表达式, 每项为 {起始地址, 结束地址}
+        final List<int[]> invariants = new ArrayList<>();
+
+        Loop(int header, int end, Procedures.Procedure procedure) {
+            this.header = header;
+            this.end = end;
+            this.procedure = procedure;
+        }
+
+        boolean contains(Loop other) {
+            return this != other && other.header >= header && other.end <= end;
+        }
+    }
+
+    // 做一轮外提, 返回外提的表达式个数
+    private int hoist(Interpreter interpreter) {
+        int[] code = interpreter.code;
+        int length = interpreter.arrayPtr;
+        Procedures procedures;
+        try {
+            procedures = Procedures.analyze(interpreter);
+        } catch (IllegalStateException error) {
+            return 0;
+        }
+        Map<Procedures.Procedure, Set<Long>> effects = effects(code, procedures);
+        BitSet targets = new BitSet(length + 1);
+        for (int i = 0; i < length; i++) {
+            if (isBranch(Opcode.op(code[i * Opcode.WIDTH]))) {
+                targets.set(code[i * Opcode.WIDTH + 1]);
+            }
+        }
+
+        // 向回跳的跳转构成循环, 跳到同一循环头的取最后一条
+        TreeMap<Integer, Integer> backEdges = new TreeMap<>();
+        for (int i = 0; i < length; i++) {
+            int target = code[i * Opcode.WIDTH + 1];
+            if (isBranch(Opcode.op(code[i * Opcode.WIDTH])) && target <= i) {
+                backEdges.merge(target, i, Math::max);
+            }
+        }
+        List<Loop> candidates = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> edge : backEdges.entrySet()) {
+            Procedures.Procedure procedure = procedures.at(edge.getKey());
+            if (procedure == null || procedure != procedures.at(edge.getValue())) {
+                continue;
+            }
+            Loop loop = new Loop(edge.getKey(), edge.getValue(), procedure);
+            if (enterable(code, length, loop)) {
+                find(code, loop, written(code, procedures, effects, loop), targets);
+                if (!loop.invariants.isEmpty()) {
+                    candidates.add(loop);
+                }
+            }
+        }
+
+        // 只处理不在其他候选循环之内的循环, 它们互不重叠
+        Map<Integer, Loop> selected = new HashMap<>();
+        Map<Procedures.Procedure, Integer> extension = new HashMap<>();
+        for (Loop loop : candidates) {
+            boolean outermost = true;
+            for (Loop other : candidates) {
+                if (other.contains(loop) || other != loop && other.header < loop.header && other.end >= loop.header) {
+                    outermost = false;
+                }
+            }
+            int added = extension.getOrDefault(loop.procedure, 0) + loop.invariants.size();
+            if (outermost && Opcode.fitsExtra(loop.procedure.size + added)) {
+                selected.put(loop.header, loop);
+                extension.put(loop.procedure, added);
+            }
+        }
+        if (selected.isEmpty()) {
+            return 0;
+        }
+
+        int growth = 0;
+        for (Loop loop : selected.values()) {
+            for (int[] invariant : loop.invariants) {
+                growth += invariant[1] - invariant[0] + 1;
+            }
+        }
+        int[] result = new int[Math.max(code.length, (length + growth + 1) * Opcode.WIDTH)];
+        int[] lines = new int[result.length / Opcode.WIDTH];
+        int[] map = new int[length + 1];
+        // 循环头的新地址, 循环内跳回循环头的跳转不再经过外提的代码
+        int[] headers = new int[length];
+        // 需要修正跳转目标的指令的原地址, 不是跳转时为 -1
+        int[] origins = new int[result.length / Opcode.WIDTH];
+        Arrays.fill(origins, -1);
+        // 表达式的起始地址对应的结束地址和单元
+        Map<Integer, int[]> replaced = new HashMap<>();
+        Map<Procedures.Procedure, Integer> used = new HashMap<>();
+        int ptr = 0, count = 0;
+        for (int i = 0; i < length; ) {
+            map[i] = ptr;
+            Loop loop = selected.get(i);
+            if (loop != null) {
+                for (int[] invariant : loop.invariants) {
+                    int slot = loop.procedure.size + used.merge(loop.procedure, 1, Integer::sum) - 1;
+                    replaced.put(invariant[0], new int[]{invariant[1], slot, loop.procedure.level});
+                    for (int j = invariant[0]; j < invariant[1]; j++) {
+                        ptr = emit(result, lines, ptr, code[j * Opcode.WIDTH], code[j * Opcode.WIDTH + 1],
+                                interpreter.getLine(j));
+                    }
+                    ptr = emit(result, lines, ptr, loop.procedure.level == 0 ? Opcode.pack(Opcode.STG, 0)
+                            : Opcode.pack(Opcode.STO, 0), slot, interpreter.getLine(invariant[0]));
+                    count++;
+                }
+                loops++;
+            }
+            headers[i] = ptr;
+            int[] expression = replaced.get(i);
+            if (expression != null) {
+                // 表达式替换为读取对应的单元, 表达式内部不是跳转目标
+                ptr = emit(result, lines, ptr, expression[2] == 0 ? Opcode.pack(Opcode.LDG, 0)
+                        : Opcode.pack(Opcode.LOD, 0), expression[1], interpreter.getLine(i));
+                for (int j = i + 1; j < expression[0]; j++) {
+                    map[j] = ptr;
+                }
+                i = expression[0];
+                continue;
+            }
+            int word = code[i * Opcode.WIDTH];
+            int argument = code[i * Opcode.WIDTH + 1];
+            int op = Opcode.op(word);
+            if (op == Opcode.INT) {
+                Procedures.Procedure procedure = procedures.get(i);
+                if (procedure != null && extension.containsKey(procedure)) {
+                    argument += extension.get(procedure);
+                }
+            } else if (op == Opcode.CLI) {
+                Procedures.Procedure callee = procedures.get(procedures.callee(i));
+                if (callee != null && extension.containsKey(callee)) {
+                    word = Opcode.pack(op, Opcode.level(word), Opcode.extra(word) + extension.get(callee));
+                }
+            }
+            if (Opcode.isJump(op)) {
+                origins[ptr] = i;
+            }
+            ptr = emit(result, lines, ptr, word, argument, interpreter.getLine(i));
+            i++;
+        }
+        map[length] = ptr;
+
+        // 修正跳转地址, 从循环外跳到循环头的跳转先执行外提的代码
+        for (int i = 0; i < ptr; i++) {
+            if (origins[i] < 0) {
+                continue;
+            }
+            int target = result[i * Opcode.WIDTH + 1];
+            Loop loop = target < length ? selected.get(target) : null;
+            boolean inside = loop != null && origins[i] >= loop.header && origins[i] <= loop.end;
+            result[i * Opcode.WIDTH + 1] = inside ? headers[target] : map[target];
+        }
+        interpreter.setCode(result, lines, ptr);
+        return count;
+    }
+
+    private static int emit(int[] result, int[] lines, int ptr, int word, int argument, int line) {
+        result[ptr * Opcode.WIDTH] = word;
+        result[ptr * Opcode.WIDTH + 1] = argument;
+        lines[ptr] = line;
+        return ptr + 1;
+    }
+
+    // 循环外只能跳到循环头, 否则外提的代码不一定在进入循环前执行
+    private static boolean enterable(int[] code, int length, Loop loop) {
+        for (int i = 0; i < length; i++) {
+            if (i >= loop.header && i <= loop.end || !isBranch(Opcode.op(code[i * Opcode.WIDTH]))) {
+                continue;
+            }
+            int target = code[i * Opcode.WIDTH + 1];
+            if (target > loop.header && target <= loop.end) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 从 start 开始, 只读取不变变量, 执行后栈上正好多一个值的最长指令序列, 长度不超过 1 时不值得外提
+    private static void find(int[] code, Loop loop, Set<Long> written, BitSet targets) {
+        for (int i = loop.header; i <= loop.end; ) {
+            int depth = 0, end = i;
+            for (int j = i; j <= loop.end && (j == i || !targets.get(j)); j++) {
+                int effect = effect(code, loop, written, j, depth, j > i ? code[(j - 1) * Opcode.WIDTH] : 0,
+                        j > i ? code[(j - 1) * Opcode.WIDTH + 1] : 0);
+                if (effect == Integer.MIN_VALUE) {
+                    break;
+                }
+                depth += effect;
+                if (depth == 1) {
+                    end = j + 1;
+                }
+            }
+            if (end - i >= 2) {
+                loop.invariants.add(new int[]{i, end});
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    // 纯运算指令对栈深度的影响; 有副作用, 读取可能被改写的变量, 可能除零或栈上操作数不够时返回 MIN_VALUE
+    private static int effect(int[] code, Loop loop, Set<Long> written, int index, int depth,
+                              int previous, int previousArgument) {
+        int word = code[index * Opcode.WIDTH];
+        int argument = code[index * Opcode.WIDTH + 1];
+        int level = Opcode.level(word);
+        switch (Opcode.op(word)) {
+            case Opcode.LIT:
+                return 1;
+            case Opcode.LOD:
+                return written.contains(key(loop.procedure.level - level, argument)) ? Integer.MIN_VALUE : 1;
+            case Opcode.LDG:
+                return written.contains(key(0, argument)) ? Integer.MIN_VALUE : 1;
+            case Opcode.OPR:
+                if (argument == 1 || argument == 6) {
+                    return depth >= 1 ? 0 : Integer.MIN_VALUE;
+                }
+                if (argument == 5 && !(Opcode.op(previous) == Opcode.LIT && previousArgument != 0)) {
+                    return Integer.MIN_VALUE;
+                }
+                return depth >= 2 && (argument >= 2 && argument <= 5 || argument >= 8 && argument <= 14)
+                        ? -1 : Integer.MIN_VALUE;
+            case Opcode.LDO:
+                return depth >= 1 && Opcode.extra(word) != 5
+                        && !written.contains(key(loop.procedure.level - level, argument)) ? 0 : Integer.MIN_VALUE;
+            case Opcode.LTO:
+                return depth >= 1 && (level != 5 || argument != 0) ? 0 : Integer.MIN_VALUE;
+            default:
+                return Integer.MIN_VALUE;
+        }
+    }
+
+    // 循环中可能被写的变量, 按 (所在栈帧的层次, 地址) 记录
+    private static Set<Long> written(int[] code, Procedures procedures,
+                                     Map<Procedures.Procedure, Set<Long>> effects, Loop loop) {
+        Set<Long> written = new HashSet<>();
+        for (int i = loop.header; i <= loop.end; i++) {
+            Long variable = store(code, i, loop.procedure.level);
+            if (variable != null) {
+                written.add(variable);
+            } else if (procedures.isCall(i)) {
+                Procedures.Procedure callee = procedures.get(procedures.callee(i));
+                if (callee != null) {
+                    written.addAll(effects.get(callee));
+                }
+            }
+        }
+        return written;
+    }
+
+    // 调用每个过程可能改写的调用者可见的变量, 即它和它调用的过程写的外层变量
+    private static Map<Procedures.Procedure, Set<Long>> effects(int[] code, Procedures procedures) {
+        Map<Procedures.Procedure, Set<Long>> effects = new HashMap<>();
+        for (Procedures.Procedure procedure : procedures) {
+            Set<Long> set = new HashSet<>();
+            for (int i = procedure.entry; i < procedure.end; i++) {
+                Long variable = store(code, i, procedure.level);
+                if (variable != null && level(variable) < procedure.level) {
+                    set.add(variable);
+                }
+            }
+            effects.put(procedure, set);
+        }
+        // 递归调用时要迭代到不动点
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Procedures.Procedure procedure : procedures) {
+                Set<Long> set = effects.get(procedure);
+                for (Procedures.Procedure callee : procedure.callees) {
+                    for (long variable : effects.get(callee)) {
+                        if (level(variable) < procedure.level && set.add(variable)) {
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+        return effects;
+    }
+
+    // 写变量的指令所写的变量, 不是写变量的指令时返回 null
+    private static Long store(int[] code, int index, int level) {
+        int word = code[index * Opcode.WIDTH];
+        int argument = code[index * Opcode.WIDTH + 1];
+        switch (Opcode.op(word)) {
+            case Opcode.STO:
+            case Opcode.RED:
+                return key(level - Opcode.level(word), argument);
+            case Opcode.STG:
+                return key(0, argument);
+            case Opcode.INC:
+            case Opcode.STL:
+                return key(level - Opcode.level(word), Opcode.extra(word));
+            default:
+                return null;
+        }
+    }
+
+    private static long key(int level, int address) {
+        return (long) level << 32 | address & 0xFFFFFFFFL;
+    }
+
+    private static int level(long variable) {
+        return (int) (variable >> 32);
+    }
+
+    // 过程内的跳转, 不包括调用
+    private static boolean isBranch(int op) {
+        return Opcode.isJump(op) && !Opcode.isCall(op);
+    }
+
+    public int getExpressions() {
+        return expressions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("loop invariants: %d expressions hoisted out of %d loops", expressions, loops);
+    }
+}
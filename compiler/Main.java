@@ -1,21 +1,118 @@
 package compiler;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class Main {
     public static void main(String[] args) {
+        String filename = "D:\\1234\\workspace\\java\\compiler\\src\\pl0_test\\correct_test4";
+        String input = null, save = null;
+        int level = 0;
+        boolean debug = false, compare = false, profile = false;
+        Engine engine = Engine.SWITCH;
+        Interpreter interpreter = new Interpreter();
+        for (String arg : args) {
+            if (arg.equals("-O")) {
+                level = PassManager.MAX_LEVEL;
+            } else if (arg.matches("-O\\d")) {
+                level = Integer.parseInt(arg.substring(2));
+            } else if (arg.equals("-debug")) {
+                debug = true;
+            } else if (arg.equals("-compare")) {
+                compare = true;
+            } else if (arg.equals("-profile")) {
+                profile = true;
+            } else if (arg.startsWith("-engine=")) {
+                engine = Engine.valueOf(arg.substring("-engine=".length()).toUpperCase());
+            } else if (arg.startsWith("-stack=")) {
+                interpreter.setStackLimit(Integer.parseInt(arg.substring("-stack=".length())));
+            } else if (arg.startsWith("-code=")) {
+                interpreter.setCodeLimit(Integer.parseInt(arg.substring("-code=".length())));
+            } else if (arg.equals("-reserve")) {
+                interpreter.setReserveStack(true);
+            } else if (arg.startsWith("-flush=")) {
+                interpreter.setFlushThreshold(Integer.parseInt(arg.substring("-flush=".length())));
+            } else if (arg.startsWith("-input=")) {
+                input = arg.substring("-input=".length());
+            } else if (arg.startsWith("-save=")) {
+                save = arg.substring("-save=".length());
+            } else {
+                filename = arg;
+            }
+        }
         try {
-            Lexer lexer = new Lexer("D:\\1234\\workspace\\java\\compiler\\src\\pl0_test\\correct_test4");
-            lexer.lex();
-            Interpreter interpreter = new Interpreter();
-            Parser parser = new Parser(lexer, interpreter,"Pcode");
-            parser.nextToken();
-            parser.parse();
-            interpreter.interpret(new BufferedReader(new InputStreamReader(System.in)), new BufferedWriter(new OutputStreamWriter(System.out)));
+            Program program;
+            Path path = Paths.get(filename);
+            if (ProgramFile.isProgramFile(path)) {
+                // 已经编译好的程序 (-save= 生成), 直接加载执行
+                program = interpreter.load(path);
+            } else {
+                // 不预先调用 lex(), 由语法分析按需扫描单词
+                Lexer lexer = new Lexer(filename);
+                Parser parser = new Parser(lexer, interpreter,"Pcode");
+                parser.nextToken();
+                parser.parse();
+                PassManager passes = PassManager.forLevel(level);
+                passes.setVerify(debug);
+                if (!passes.isEmpty()) {
+                    passes.run(interpreter);
+                    // 统计写到标准错误, 不与程序的输出混在一起; 优化后的指令只在 -debug 时列出
+                    System.err.println(passes);
+                    if (debug) {
+                        interpreter.printInstructions(0);
+                    }
+                }
+                program = interpreter.toProgram();
+            }
+            if (save != null) {
+                ProgramFile.write(program, Paths.get(save));
+            }
+            if (compare) {
+                compare(program);
+            } else if (profile) {
+                // 剖析总是使用逐条解释执行
+                System.out.print(program.profile(new BufferedReader(new InputStreamReader(System.in)), new BufferedWriter(new OutputStreamWriter(System.out))));
+            } else if (input != null) {
+                // 输入文件映射到内存中读取
+                program.interpret(new IntReader(Paths.get(input)), new IntWriter(new OutputStreamWriter(System.out), interpreter.getFlushThreshold()), engine);
+            } else {
+                program.interpret(new BufferedReader(new InputStreamReader(System.in)), new BufferedWriter(new OutputStreamWriter(System.out)), engine);
+            }
+            if (debug) {
+                // 各引擎退回到解释执行的原因
+                for (String reason : program.getFallbacks()) {
+                    System.err.println(reason);
+                }
+            }
         } catch (IOException e) {
             System.out.println(e);
         } catch (CompileException e) {
             System.out.println(e.getErrors());
         }
     }
+
+    // 用同一份输入依次运行各个执行引擎, 比较输出和耗时
+    private static void compare(Program program) throws IOException {
+        StringWriter input = new StringWriter();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            input.write(buffer, 0, n);
+        }
+        String expected = null;
+        for (Engine engine : Engine.values()) {
+            StringWriter output = new StringWriter();
+            long start = System.nanoTime();
+            program.interpret(new BufferedReader(new StringReader(input.toString())), new BufferedWriter(output), engine);
+            long time = System.nanoTime() - start;
+            if (expected == null) {
+                expected = output.toString();
+                System.out.print(expected);
+            }
+            System.out.printf("%s: %.3f ms%s%n", engine, time / 1e6,
+                    expected.equals(output.toString()) ? "" : ", output differs");
+        }
+    }
 }
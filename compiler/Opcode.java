@@ -0,0 +1,89 @@
+package compiler;
+
+// Pcode 的紧凑编码: 每条指令占 code 数组中相邻的两个 int
+// 第一个 int 的低 8 位为操作码 (与 Code 的序号一致), 8~15 位为层次差, 高 16 位为有符号的附加操作数;
+// 第二个 int 为参数. 跳转类指令的目标地址总是放在参数中
+final class Opcode {
+    static final int LIT = 0;
+    static final int OPR = 1;
+    static final int LOD = 2;
+    static final int STO = 3;
+    static final int CAL = 4;
+    static final int INT = 5;
+    static final int JMP = 6;
+    static final int JPC = 7;
+    static final int WRT = 8;
+    static final int RED = 9;
+    // 以下为窥孔优化生成的超级指令
+    // INC l a n: 变量自增 n
+    static final int INC = 10;
+    // STL l a n: 将常数 n 存入变量
+    static final int STL = 11;
+    // LDO l a k: 栈顶与变量做第 k 号二元运算
+    static final int LDO = 12;
+    // LTO k n: 栈顶与常数 n 做第 k 号二元运算
+    static final int LTO = 13;
+    // JNC k t: 做第 k 号比较运算, 结果为假时跳转
+    static final int JNC = 14;
+    // JLC k n t: 栈顶与常数 n 做第 k 号比较运算, 结果为假时跳转
+    static final int JLC = 15;
+    // CLI l s t: 调用过程并直接分配大小为 s 的栈帧
+    static final int CLI = 16;
+    // LDG 0 a / STG 0 a: 读写主程序 (第 0 层) 的变量
+    static final int LDG = 17;
+    static final int STG = 18;
+    // TCL l t: 尾调用, 被调过程复用当前过程的栈帧, 返回时直接回到当前过程的调用者. 层次差至少为 1
+    static final int TCL = 19;
+
+    // 每条指令占用的 int 个数
+    static final int WIDTH = 2;
+    // 附加操作数的取值范围
+    static final int EXTRA_MIN = Short.MIN_VALUE;
+    static final int EXTRA_MAX = Short.MAX_VALUE;
+    static final int LEVEL_MAX = 0xFF;
+
+    private static final Code[] CODES = Code.values();
+
+    private Opcode() {
+    }
+
+    static int pack(int op, int level) {
+        return op | level << 8;
+    }
+
+    static int pack(int op, int level, int extra) {
+        return op | level << 8 | extra << 16;
+    }
+
+    static int op(int word) {
+        return word & 0xFF;
+    }
+
+    static int level(int word) {
+        return (word >>> 8) & 0xFF;
+    }
+
+    static int extra(int word) {
+        return word >> 16;
+    }
+
+    static Code code(int word) {
+        return CODES[op(word)];
+    }
+
+    static boolean isJump(int op) {
+        return op == JMP || op == JPC || op == CAL || op == JNC || op == JLC || op == CLI || op == TCL;
+    }
+
+    static boolean isCall(int op) {
+        return op == CAL || op == CLI || op == TCL;
+    }
+
+    static boolean hasExtra(int op) {
+        return op == INC || op == STL || op == LDO || op == JLC || op == CLI;
+    }
+
+    static boolean fitsExtra(int value) {
+        return value >= EXTRA_MIN && value <= EXTRA_MAX;
+    }
+}
@@ -2,8 +2,10 @@ package compiler;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.List;
 
 public class Parser {
     private Lexer lexer;
@@ -15,11 +17,20 @@ public class Parser {
     // block, statement, factor的First集合
     private BitSet blockFirst, statementFirst, factorFirst;
     private int dx;
+    // 当前单词在单词序列中的下标
+    private int position = -1;
+    // 不为 null 时记录每个过程的语句部分, 供增量编译使用
+    private List<Body> bodies;
 
     public Parser(Lexer lexer, Interpreter interpreter, String filename) throws IOException {
+        this(lexer, interpreter);
+        outFile = new FileWriter(filename);
+    }
+
+    // 不写出指令文件
+    Parser(Lexer lexer, Interpreter interpreter) {
         this.lexer = lexer;
         this.interpreter = interpreter;
-        outFile = new FileWriter(filename);
         table = new TokenTable();
         errors = new CompileException();
         blockFirst = new BitSet();
@@ -58,8 +69,13 @@ public class Parser {
 
     public void nextToken() {
         System.out.println(token);
+        if (token != null) {
+            // 之后生成的指令属于刚读过的单词所在的行
+            interpreter.setLine(token.line);
+        }
         if (lexer.hasNextToken()) {
             token = lexer.nextToken();
+            position++;
         } else {
             token = null;
         }
@@ -79,6 +95,8 @@ public class Parser {
         } catch (NullPointerException error) {
             errors.addErrors(Collections.singletonList("程序未正常结束"));
         }
+        // 按需扫描单词时, 词法错误在这里才报告, 与先做完词法分析时一样优先于语法错误
+        lexer.finish();
         // 不以句号结尾, 报错
         if (token == null) {
             errors.addErrors(Collections.singletonList("缺少句号"));
@@ -91,10 +109,10 @@ public class Parser {
         interpreter.printInstructions(0);
         if (errors.getErrors().size() != 0) {
             throw errors;
-        } else {
+        } else if (outFile != null) {
             try {
                 for (int i = 0; i < interpreter.arrayPtr; i++) {
-                    outFile.write(interpreter.instructions[i].toString() + "\n");
+                    outFile.write(interpreter.getInstruction(i).toString() + "\n");
                 }
                 outFile.close();
             } catch (IOException error) {
@@ -103,6 +121,35 @@ public class Parser {
         }
     }
 
+    // 记录分析过程中每个过程的语句部分
+    void record(List<Body> bodies) {
+        this.bodies = bodies;
+    }
+
+    // 增量编译时只重新分析一个过程的语句部分, 代码从地址 0 开始生成, 单词从语句部分的第一个单词开始.
+    // previous 为之前的一个单词, 第一条指令属于它所在的行. 返回分析停在的单词的下标, 单词不够时返回 -1
+    int reparse(Body body, Token previous) {
+        table = new TokenTable(body.scope);
+        dx = body.size;
+        token = previous;
+        try {
+            nextToken();
+            if (statementFirst.get(token.symbol.ordinal())) {
+                statement(body.level, body.follow);
+            }
+            interpreter.generate(Code.OPR, 0, 0);
+        } catch (NullPointerException error) {
+            return -1;
+        } catch (ParseException error) {
+            errors.addErrors(error.getMessage(), token.line);
+        }
+        return position;
+    }
+
+    List<String> getErrors() {
+        return errors.getErrors();
+    }
+
     private void block(int level, BitSet follow) {
         // block = [ 'const' ident '=' number {',' ident '=' number} ';']
         // [ 'var' ident {',' ident} ';']
@@ -187,7 +234,7 @@ public class Parser {
 
         Item item = table.get(tablePtr);
         // 过程入口地址, JMP的第二个参数
-        interpreter.instructions[item.address].argument = interpreter.arrayPtr;
+        interpreter.setArgument(item.address, interpreter.arrayPtr);
         item.address = interpreter.arrayPtr;
         item.size = dx;
         // dx即是当前堆栈大小
@@ -203,6 +250,10 @@ public class Parser {
         nextLevel = (BitSet) follow.clone();
         nextLevel.set(Symbol.SemiColon.ordinal());
         nextLevel.set(Symbol.End.ordinal());
+        Body body = null;
+        if (bodies != null) {
+            body = new Body(level, dx, nextLevel, table.snapshot(), position, interpreterPtr, errors.getErrors().size());
+        }
         if (statementFirst.get(token.symbol.ordinal())) {
             statement(level, nextLevel);
         }
@@ -212,6 +263,10 @@ public class Parser {
         } catch (ParseException error) {
             errors.addErrors(error.getMessage(), token.line);
         }
+        if (body != null) {
+            body.finish(position, interpreter.arrayPtr - 1, errors.getErrors());
+            bodies.add(body);
+        }
         interpreter.printInstructions(interpreterPtr);
         dx = dx0;
         table.tablePtr = tablePtr;
@@ -249,11 +304,20 @@ public class Parser {
         }
     }
 
+    // 过大的数由词法分析报告; 按需扫描时语法分析仍会读到这样的数, 当作 0 继续分析
+    private static int value(Token token) {
+        try {
+            return Integer.parseInt(token.name);
+        } catch (NumberFormatException error) {
+            return 0;
+        }
+    }
+
     private void constDeclare(int level) {
         // 'const' ident '=' number
         if (token.symbol == Symbol.Identifier) {
-            String id = token.name;
-            int index = table.index(id);
+            Token identifier = token;
+            int index = table.index(identifier.id);
             //　查看是否有最近出现的一个和它重名, 且在同一层的变量,常量或者过程名
             if (index != 0 && table.get(index).level == level) {
                 errors.addErrors(36, token.line);
@@ -266,10 +330,9 @@ public class Parser {
                 }
                 nextToken();
                 if (token.symbol == Symbol.Integer) {
-                    int value = Integer.parseInt(token.name);
-                    token.name = id;
+                    int value = value(token);
                     try {
-                        table.addConstant(token, level, value);
+                        table.addConstant(identifier, level, value);
                     } catch (ParseException error) {
                         errors.addErrors(error.getMessage(), token.line);
                     }
@@ -291,7 +354,7 @@ public class Parser {
     private void variableDeclare(int level) {
         // 'var' ident
         if (token.symbol == Symbol.Identifier) {
-            int index = table.index(token.name);
+            int index = table.index(token.id);
             //　查看是否有最近出现的一个和它重名, 且在同一层的变量,常量或者过程名
             if (index != 0 && table.get(index).level == level) {
                 errors.addErrors(36, token.line);
@@ -309,6 +372,121 @@ public class Parser {
         }
     }
 
+    // 主程序 (第 0 层) 的变量用 LDG/STG 直接寻址, 其余变量按层次差寻址
+    private void generateLoad(int level, Item item) throws ParseException {
+        if (item.level == 0) {
+            interpreter.generate(Code.LDG, 0, item.address);
+        } else {
+            interpreter.generate(Code.LOD, level - item.level, item.address);
+        }
+    }
+
+    private void generateStore(int level, Item item) throws ParseException {
+        if (item.level == 0) {
+            interpreter.generate(Code.STG, 0, item.address);
+        } else {
+            interpreter.generate(Code.STO, level - item.level, item.address);
+        }
+    }
+
+    // 从 start 开始生成的代码是否只有一条 LIT, 即编译时就能算出的常量
+    private boolean isConstant(int start, int end) {
+        return end == start + 1 && interpreter.getInstruction(start).code == Code.LIT;
+    }
+
+    private int constant(int start) {
+        return interpreter.getInstruction(start).argument;
+    }
+
+    // 生成运算指令, 操作数为 [start, middle) 和 [middle, arrayPtr) 两段代码 (一元运算只有第一段).
+    // 操作数都是常量时直接算出结果, 否则化简与 0 和 1 的运算. 表达式没有副作用,
+    // 但除以 0 要留到运行时报错, 所以被丢弃的操作数中不能有除法
+    private void generateOperation(int start, int middle, int operator) throws ParseException {
+        int end = interpreter.arrayPtr;
+        boolean left = isConstant(start, middle), right = isConstant(middle, end);
+        if (operator == 6) {
+            if (left) {
+                int value = constant(start) & 1;
+                interpreter.rewind(start);
+                interpreter.generate(Code.LIT, 0, value);
+            } else {
+                interpreter.generate(Code.OPR, 0, 6);
+            }
+            return;
+        }
+        if (left && right && !(operator == 5 && constant(middle) == 0)) {
+            int value = Interpreter.operate(operator, constant(start), constant(middle));
+            interpreter.rewind(start);
+            interpreter.generate(Code.LIT, 0, value);
+            return;
+        }
+        if (right) {
+            int value = constant(middle);
+            // x + 0, x - 0, x * 1, x / 1
+            if ((operator == 2 || operator == 3) && value == 0 || (operator == 4 || operator == 5) && value == 1) {
+                interpreter.rewind(middle);
+                return;
+            }
+            // x * 0
+            if (operator == 4 && value == 0 && !divides(start, middle)) {
+                interpreter.rewind(start);
+                interpreter.generate(Code.LIT, 0, 0);
+                return;
+            }
+        }
+        if (left) {
+            int value = constant(start);
+            // 0 + x, 1 * x
+            if (operator == 2 && value == 0 || operator == 4 && value == 1) {
+                interpreter.remove(start, middle);
+                return;
+            }
+            // 0 * x
+            if (operator == 4 && value == 0 && !divides(middle, end)) {
+                interpreter.rewind(start);
+                interpreter.generate(Code.LIT, 0, 0);
+                return;
+            }
+            // 0 - x => -x
+            if (operator == 3 && value == 0) {
+                interpreter.remove(start, middle);
+                interpreter.generate(Code.OPR, 0, 1);
+                return;
+            }
+        }
+        interpreter.generate(Code.OPR, 0, operator);
+    }
+
+    private void generateNegation(int start) throws ParseException {
+        if (isConstant(start, interpreter.arrayPtr)) {
+            int value = -constant(start);
+            interpreter.rewind(start);
+            interpreter.generate(Code.LIT, 0, value);
+        } else {
+            interpreter.generate(Code.OPR, 0, 1);
+        }
+    }
+
+    private boolean divides(int start, int end) {
+        for (int i = start; i < end; i++) {
+            Instruction instruction = interpreter.getInstruction(i);
+            if (instruction.code == Code.OPR && instruction.argument == 5) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 条件为常量时删除计算它的代码, 返回 0 或 1, 由调用者丢弃不会执行的分支; 不是常量时返回 -1
+    private int constantCondition(int start) {
+        if (!isConstant(start, interpreter.arrayPtr)) {
+            return -1;
+        }
+        int value = constant(start) != 0 ? 1 : 0;
+        interpreter.rewind(start);
+        return value;
+    }
+
     private void test(BitSet s1, BitSet s2, int errorCode) {
         if (!s1.get(token.symbol.ordinal())) {
             errors.addErrors(errorCode, token.line);
@@ -321,7 +499,7 @@ public class Parser {
 
     private void assignmentStatement(int level, BitSet follow) {
         // ident ':=' expression
-        int index = table.index(token.name);
+        int index = table.index(token.id);
         if (index > 0) {
             Item item = table.get(index);
             if (item.type == Type.Variable) {
@@ -335,15 +513,26 @@ public class Parser {
                 // 解析表达式
                 expression(level, nextLevel);
                 try {
-                    interpreter.generate(Code.STO, level - item.level, item.address);
+                    generateStore(level, item);
                 } catch (ParseException error) {
                     errors.addErrors(error.getMessage(), token.line);
                 }
             } else {
                 errors.addErrors(13, token.line);
+                skipAssignment(level, follow);
             }
         } else {
             errors.addErrors(12, token.line);
+            skipAssignment(level, follow);
+        }
+    }
+
+    // 赋值的对象有错时仍然读完整个赋值语句, 否则 begin 中的语句循环会停在这个标识符上不断报错
+    private void skipAssignment(int level, BitSet follow) {
+        nextToken();
+        if (token.symbol == Symbol.Assign) {
+            nextToken();
+            expression(level, (BitSet) follow.clone());
         }
     }
 
@@ -354,7 +543,7 @@ public class Parser {
             do {
                 nextToken();
                 if (token.symbol == Symbol.Identifier) {
-                    index = table.index(token.name);
+                    index = table.index(token.id);
                 }
                 // 未声明的标识符
                 if (index == 0) {
@@ -375,7 +564,7 @@ public class Parser {
                             break;
                         case Variable:
                             try {
-                                interpreter.generate(Code.LOD, level - item.level, item.address);
+                                generateLoad(level, item);
                                 interpreter.generate(Code.WRT, 0, 0);
                             } catch (ParseException error) {
                                 errors.addErrors(error.getMessage(), token.line);
@@ -409,7 +598,7 @@ public class Parser {
             do {
                 nextToken();
                 if (token.symbol == Symbol.Identifier) {
-                    index = table.index(token.name);
+                    index = table.index(token.id);
                 }
                 // 未声明的标识符
                 if (index == 0) {
@@ -438,7 +627,7 @@ public class Parser {
     private void callStatement(int level, BitSet follow) {
         nextToken();
         if (token.symbol == Symbol.Identifier) {
-            int index = table.index(token.name);
+            int index = table.index(token.id);
             if (index > 0) {
                 Item item = table.get(index);
                 switch (item.type) {
@@ -468,7 +657,10 @@ public class Parser {
         nextToken();
         BitSet nextLevel = (BitSet) follow.clone();
         nextLevel.set(Symbol.Then.ordinal());
+        int start = interpreter.arrayPtr;
         condition(level, nextLevel);
+        // 条件为常量时不生成跳转, 只保留会执行的分支
+        int value = constantCondition(start);
         // Condition 后面接 Then
         if (token.symbol == Symbol.Then) {
             nextToken();
@@ -476,29 +668,40 @@ public class Parser {
             errors.addErrors(17, token.line);
         }
         int interpreterPtr1 = interpreter.arrayPtr;
-        try {
-            interpreter.generate(Code.JPC, 0, 0);
-        } catch (ParseException error) {
-            errors.addErrors(error.getMessage(), token.line);
+        if (value < 0) {
+            try {
+                interpreter.generate(Code.JPC, 0, 0);
+            } catch (ParseException error) {
+                errors.addErrors(error.getMessage(), token.line);
+            }
         }
         nextLevel.set(Symbol.Else.ordinal());
         statement(level, nextLevel);
+        if (value == 0) {
+            interpreter.rewind(interpreterPtr1);
+        }
         if (token.symbol == Symbol.Else) {
             // 如果有 Else 则需要增加一条跳转命令
             int interpreter2 = interpreter.arrayPtr;
-            try {
-                interpreter.generate(Code.JMP, 0, 0);
-            } catch (ParseException error) {
-                errors.addErrors(error.getMessage(), token.line);
+            if (value < 0) {
+                try {
+                    interpreter.generate(Code.JMP, 0, 0);
+                } catch (ParseException error) {
+                    errors.addErrors(error.getMessage(), token.line);
+                }
+                // 回填Condition为假时, 即进入Else的地址
+                interpreter.setArgument(interpreterPtr1, interpreter.arrayPtr);
             }
-            // 回填Condition为假时, 即进入Else的地址
-            interpreter.instructions[interpreterPtr1].argument = interpreter.arrayPtr;
             nextToken();
             statement(level, follow);
-            // 回填Condition为真时, 跳过Else分支的地址
-            interpreter.instructions[interpreter2].argument = interpreter.arrayPtr;
-        } else {
-            interpreter.instructions[interpreterPtr1].argument = interpreter.arrayPtr;
+            if (value < 0) {
+                // 回填Condition为真时, 跳过Else分支的地址
+                interpreter.setArgument(interpreter2, interpreter.arrayPtr);
+            } else if (value == 1) {
+                interpreter.rewind(interpreter2);
+            }
+        } else if (value < 0) {
+            interpreter.setArgument(interpreterPtr1, interpreter.arrayPtr);
         }
     }
 
@@ -532,12 +735,15 @@ public class Parser {
         BitSet nextLevel = (BitSet) follow.clone();
         nextLevel.set(Symbol.Do.ordinal());
         condition(level, nextLevel);
+        int value = constantCondition(interpreterPtr1);
         // 循环结束
         int interpreterPtr2 = interpreter.arrayPtr;
-        try {
-            interpreter.generate(Code.JPC, 0, 0);
-        } catch (ParseException error) {
-            errors.addErrors(error.getMessage(), token.line);
+        if (value < 0) {
+            try {
+                interpreter.generate(Code.JPC, 0, 0);
+            } catch (ParseException error) {
+                errors.addErrors(error.getMessage(), token.line);
+            }
         }
         // Condition后面接Do
         if (token.symbol == Symbol.Do) {
@@ -546,6 +752,11 @@ public class Parser {
             errors.addErrors(19, token.line);
         }
         statement(level, follow);
+        if (value == 0) {
+            // 条件恒假, 整个循环都不会执行
+            interpreter.rewind(interpreterPtr1);
+            return;
+        }
         // 跳回条件判断的位置
         try {
             interpreter.generate(Code.JMP, 0, interpreterPtr1);
@@ -553,7 +764,9 @@ public class Parser {
             errors.addErrors(error.getMessage(), token.line);
         }
         // 回填跳出循环的地址
-        interpreter.instructions[interpreterPtr2].argument = interpreter.arrayPtr;
+        if (value < 0) {
+            interpreter.setArgument(interpreterPtr2, interpreter.arrayPtr);
+        }
     }
 
     private void repeatStatement(int level, BitSet follow) {
@@ -576,9 +789,16 @@ public class Parser {
         // Statement 后接 Until
         if (token.symbol == Symbol.Until) {
             nextToken();
+            int start = interpreter.arrayPtr;
             condition(level, follow);
+            // 条件恒真时循环体只执行一次, 恒假时无条件跳回
+            int value = constantCondition(start);
             try {
-                interpreter.generate(Code.JPC, 0, interpreterPtr1);
+                if (value < 0) {
+                    interpreter.generate(Code.JPC, 0, interpreterPtr1);
+                } else if (value == 0) {
+                    interpreter.generate(Code.JMP, 0, interpreterPtr1);
+                }
             } catch (ParseException error) {
                 errors.addErrors(error.getMessage(), token.line);
             }
@@ -587,6 +807,7 @@ public class Parser {
 
     private void expression(int level, BitSet follow) {
         // expression = [ '+'|'-'] term { ('+'|'-') term}
+        int start = interpreter.arrayPtr;
         if (token.symbol == Symbol.Plus || token.symbol == Symbol.Minus) {
             Symbol operator = token.symbol;
             nextToken();
@@ -597,7 +818,7 @@ public class Parser {
             // Neg 取反
             if (operator == Symbol.Minus) {
                 try {
-                    interpreter.generate(Code.OPR, 0, 1);
+                    generateNegation(start);
                 } catch (ParseException error) {
                     errors.addErrors(error.getMessage(), token.line);
                 }
@@ -615,13 +836,14 @@ public class Parser {
             BitSet nextLevel = (BitSet) follow.clone();
             nextLevel.set(Symbol.Plus.ordinal());
             nextLevel.set(Symbol.Minus.ordinal());
+            int middle = interpreter.arrayPtr;
             term(level, nextLevel);
             try {
                 // 2, 3分别为加减法
                 if (operator == Symbol.Plus) {
-                    interpreter.generate(Code.OPR, 0, 2);
+                    generateOperation(start, middle, 2);
                 } else {
-                    interpreter.generate(Code.OPR, 0, 3);
+                    generateOperation(start, middle, 3);
                 }
             } catch (ParseException error) {
                 errors.addErrors(error.getMessage(), token.line);
@@ -634,16 +856,18 @@ public class Parser {
         BitSet nextLevel = (BitSet) follow.clone();
         nextLevel.set(Symbol.Star.ordinal());
         nextLevel.set(Symbol.Slash.ordinal());
+        int start = interpreter.arrayPtr;
         factor(level, nextLevel);
         while (token.symbol == Symbol.Star || token.symbol == Symbol.Slash) {
             Symbol operator = token.symbol;
             nextToken();
+            int middle = interpreter.arrayPtr;
             factor(level, nextLevel);
             try {
                 if (operator == Symbol.Star) {
-                    interpreter.generate(Code.OPR, 0, 4);
+                    generateOperation(start, middle, 4);
                 } else {
-                    interpreter.generate(Code.OPR, 0, 5);
+                    generateOperation(start, middle, 5);
                 }
             } catch (ParseException error) {
                 errors.addErrors(error.getMessage(), level);
@@ -655,13 +879,13 @@ public class Parser {
         // factor = ident | number | '(' expression ')'
         // 以Identifier, Number, ( 开始
         if (token.symbol == Symbol.Identifier) {
-            int index = table.index(token.name);
+            int index = table.index(token.id);
             if (index > 0) {
                 Item item = table.get(index);
                 switch (item.type) {
                     case Variable:
                         try {
-                            interpreter.generate(Code.LOD, level - item.level, item.address);
+                            generateLoad(level, item);
                         } catch (ParseException error) {
                             errors.addErrors(error.getMessage(), token.line);
                         }
@@ -683,7 +907,7 @@ public class Parser {
             }
             nextToken();
         } else if (token.symbol == Symbol.Integer) {
-            int value = Integer.parseInt(token.name);
+            int value = value(token);
             try {
                 interpreter.generate(Code.LIT, 0, value);
             } catch (ParseException error) {
@@ -708,11 +932,12 @@ public class Parser {
     private void condition(int level, BitSet follow) {
         // condition = 'odd' expression |
         //            expression ('='|'#'|'<'|'<='|'>'|'>=') expression
+        int start = interpreter.arrayPtr;
         if (token.symbol == Symbol.Odd) {
             nextToken();
             expression(level, follow);
             try {
-                interpreter.generate(Code.OPR, 0, 6);
+                generateOperation(start, interpreter.arrayPtr, 6);
             } catch (ParseException error) {
                 errors.addErrors(error.getMessage(), token.line);
             }
@@ -726,57 +951,64 @@ public class Parser {
             nextLevel.set(Symbol.Less.ordinal());
             nextLevel.set(Symbol.LessEqual.ordinal());
             expression(level, nextLevel);
+            int middle;
             switch (token.symbol) {
                 case Equal:
                     nextToken();
+                    middle = interpreter.arrayPtr;
                     expression(level, follow);
                     try {
-                        interpreter.generate(Code.OPR, 0, 8);
+                        generateOperation(start, middle, 8);
                     } catch (ParseException error) {
                         errors.addErrors(error.getMessage(), token.line);
                     }
                     break;
                 case Unequal:
                     nextToken();
+                    middle = interpreter.arrayPtr;
                     expression(level, follow);
                     try {
-                        interpreter.generate(Code.OPR, 0, 9);
+                        generateOperation(start, middle, 9);
                     } catch (ParseException error) {
                         errors.addErrors(error.getMessage(), token.line);
                     }
                     break;
                 case Greater:
                     nextToken();
+                    middle = interpreter.arrayPtr;
                     expression(level, follow);
                     try {
-                        interpreter.generate(Code.OPR, 0, 12);
+                        generateOperation(start, middle, 12);
                     } catch (ParseException error) {
                         errors.addErrors(error.getMessage(), token.line);
                     }
                     break;
                 case GreaterEqual:
                     nextToken();
+                    middle = interpreter.arrayPtr;
                     expression(level, follow);
                     try {
-                        interpreter.generate(Code.OPR, 0, 13);
+                        generateOperation(start, middle, 13);
                     } catch (ParseException error) {
                         errors.addErrors(error.getMessage(), token.line);
                     }
                     break;
                 case Less:
                     nextToken();
+                    middle = interpreter.arrayPtr;
                     expression(level, follow);
                     try {
-                        interpreter.generate(Code.OPR, 0, 10);
+                        generateOperation(start, middle, 10);
                     } catch (ParseException error) {
                         errors.addErrors(error.getMessage(), token.line);
                     }
                     break;
                 case LessEqual:
                     nextToken();
+                    middle = interpreter.arrayPtr;
                     expression(level, follow);
                     try {
-                        interpreter.generate(Code.OPR, 0, 11);
+                        generateOperation(start, middle, 11);
                     } catch (ParseException error) {
                         errors.addErrors(error.getMessage(), token.line);
                     }
@@ -786,4 +1018,31 @@ public class Parser {
             }
         }
     }
-}
\ No newline at end of file
+
+    // 一个过程的语句部分: 单词下标 [first, stop), stop 为语句之后的单词; 代码从 entry 处的 INT 到 end 处的 OPR 0 0.
+    // 记录分析语句时可见的各项和栈帧大小, 以及分析语句时报告的错误
+    static final class Body {
+        final int level, size;
+        final BitSet follow;
+        final Item[] scope;
+        int first, stop, entry, end;
+        List<String> errors;
+        private final int from;
+
+        Body(int level, int size, BitSet follow, Item[] scope, int first, int entry, int from) {
+            this.level = level;
+            this.size = size;
+            this.follow = follow;
+            this.scope = scope;
+            this.first = first;
+            this.entry = entry;
+            this.from = from;
+        }
+
+        void finish(int stop, int end, List<String> errors) {
+            this.stop = stop;
+            this.end = end;
+            this.errors = new ArrayList<>(errors.subList(from, errors.size()));
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package compiler;
+
+// 作用在 Interpreter 中已生成的代码上的一趟优化, 返回做出的修改个数; toString 给出累计的统计
+public interface Pass {
+    int optimize(Interpreter interpreter);
+}
@@ -0,0 +1,108 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 按注册的顺序对生成的代码运行各趟优化, 记录每趟前后的指令条数和耗时.
+// 调试模式下在第一趟之前和每趟之后用 Verifier 检查代码, 出错时指出是哪一趟优化产生的
+public class PassManager {
+    // -O0 不做优化, -O1 只做代价很小的控制流整理, 尾调用消除和窥孔优化, -O2 做全部优化
+    public static final int MAX_LEVEL = 2;
+    private final List<String> names = new ArrayList<>();
+    private final List<Pass> passes = new ArrayList<>();
+    private final List<Statistics> statistics = new ArrayList<>();
+    private boolean verify;
+
+    public PassManager() {
+    }
+
+    public static PassManager forLevel(int level) {
+        PassManager manager = new PassManager();
+        if (level >= 2) {
+            manager.add("inline", new InliningOptimizer());
+        }
+        if (level >= 1) {
+            manager.add("control-flow", new ControlFlowOptimizer());
+        }
+        if (level >= 2) {
+            manager.add("dead-store", new DeadStoreOptimizer());
+            manager.add("loop-invariant", new LoopInvariantOptimizer());
+            manager.add("strength", new StrengthReductionOptimizer());
+            // 前面的优化可能删除变量的访问或增加临时单元, 最后统一压缩栈帧
+            manager.add("frame-packing", new FramePackingOptimizer());
+        }
+        if (level >= 1) {
+            manager.add("tail-call", new TailCallOptimizer());
+            // 超级指令放在最后生成, 前面的优化只需要处理基本指令
+            manager.add("peephole", new PeepholeOptimizer());
+        }
+        return manager;
+    }
+
+    public PassManager add(String name, Pass pass) {
+        names.add(name);
+        passes.add(pass);
+        return this;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public boolean isEmpty() {
+        return passes.isEmpty();
+    }
+
+    public void run(Interpreter interpreter) {
+        if (verify) {
+            verify(interpreter, "parse");
+        }
+        for (int i = 0; i < passes.size(); i++) {
+            int before = interpreter.arrayPtr;
+            long start = System.nanoTime();
+            int changes = passes.get(i).optimize(interpreter);
+            long time = System.nanoTime() - start;
+            statistics.add(new Statistics(names.get(i), passes.get(i), before, interpreter.arrayPtr, changes, time));
+            if (verify) {
+                verify(interpreter, names.get(i));
+            }
+        }
+    }
+
+    private static void verify(Interpreter interpreter, String name) {
+        try {
+            Verifier.verify(interpreter);
+        } catch (IllegalStateException error) {
+            throw new IllegalStateException("Invalid code after " + name + ": " + error.getMessage(), error);
+        }
+    }
+
+    private static final class Statistics {
+        final String name;
+        final Pass pass;
+        final int before, after, changes;
+        final long time;
+
+        Statistics(String name, Pass pass, int before, int after, int changes, long time) {
+            this.name = name;
+            this.pass = pass;
+            this.before = before;
+            this.after = after;
+            this.changes = changes;
+            this.time = time;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        long total = 0;
+        for (Statistics entry : statistics) {
+            res.append(String.format("%-14s %6d -> %6d (%+d) %5d changes %9.3f ms  %s%n", entry.name,
+                    entry.before, entry.after, entry.after - entry.before, entry.changes, entry.time / 1e6, entry.pass));
+            total += entry.time;
+        }
+        res.append(String.format("total %.3f ms", total / 1e6));
+        return res.toString();
+    }
+}
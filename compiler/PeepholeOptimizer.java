@@ -0,0 +1,215 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class PeepholeOptimizer implements Pass {
+    // 每种超级指令被生成的次数, 按操作码编号
+    private int[] counts;
+    private int rewrites;
+    private int[] levels;
+
+    public PeepholeOptimizer() {
+        counts = new int[Code.values().length];
+    }
+
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int[] code = interpreter.code;
+        int length = interpreter.arrayPtr;
+        int[] result = new int[code.length];
+        int[] lines = new int[code.length / Opcode.WIDTH];
+        // 旧地址到新地址的映射
+        int[] map = new int[length + 1];
+        BitSet targets = new BitSet(length + 1);
+        // CAL 的目标若为 INT, 改为调用 INT 的下一条指令, 这条指令因此也成为跳转目标
+        for (int i = 0; i < length; i++) {
+            int word = code[i * Opcode.WIDTH];
+            if (Opcode.isJump(Opcode.op(word))) {
+                targets.set(code[i * Opcode.WIDTH + 1]);
+            }
+            if (Opcode.op(word) == Opcode.CAL) {
+                int entry = entry(code, code[i * Opcode.WIDTH + 1]);
+                if (Opcode.op(code[entry * Opcode.WIDTH]) == Opcode.INT) {
+                    targets.set(entry + 1);
+                }
+            }
+        }
+
+        // 每条指令所在过程的层次, 用于把 LDG/STG 看作按层次差寻址的 LOD/STO; 未知时为 -1
+        levels = new int[length];
+        Arrays.fill(levels, -1);
+        try {
+            for (Procedures.Procedure procedure : Procedures.analyze(interpreter)) {
+                Arrays.fill(levels, procedure.entry, procedure.end + 1, procedure.level);
+            }
+        } catch (IllegalStateException error) {
+            // 代码结构无法识别时只匹配 LOD/STO
+        }
+
+        int ptr = 0, count = 0;
+        for (int i = 0; i < length; ) {
+            map[i] = ptr;
+            lines[ptr] = interpreter.getLine(i);
+            int matched = match(code, length, i, targets, result, ptr * Opcode.WIDTH);
+            if (matched == 0) {
+                result[ptr * Opcode.WIDTH] = code[i * Opcode.WIDTH];
+                result[ptr * Opcode.WIDTH + 1] = code[i * Opcode.WIDTH + 1];
+                matched = 1;
+            } else {
+                counts[Opcode.op(result[ptr * Opcode.WIDTH])]++;
+                count++;
+            }
+            for (int j = 1; j < matched; j++) {
+                map[i + j] = ptr;
+            }
+            i += matched;
+            ptr++;
+        }
+        map[length] = ptr;
+
+        // 回填跳转地址
+        for (int i = 0; i < ptr; i++) {
+            if (Opcode.isJump(Opcode.op(result[i * Opcode.WIDTH]))) {
+                result[i * Opcode.WIDTH + 1] = map[result[i * Opcode.WIDTH + 1]];
+            }
+        }
+        interpreter.setCode(result, lines, ptr);
+        rewrites += count;
+        return count;
+    }
+
+    // 顺着 JMP 找到过程真正的入口
+    private int entry(int[] code, int address) {
+        int steps = 0;
+        while (Opcode.op(code[address * Opcode.WIDTH]) == Opcode.JMP && steps++ < code.length) {
+            address = code[address * Opcode.WIDTH + 1];
+        }
+        return address;
+    }
+
+    // 尝试在位置 i 匹配一个模式, 成功则将超级指令写入 result[index], 返回被替换的指令条数
+    private int match(int[] code, int length, int i, BitSet targets, int[] result, int index) {
+        int op0 = op(code, i), op1 = op(code, i + 1, length), op2 = op(code, i + 2, length);
+        int argument = code[i * Opcode.WIDTH + 1];
+        int load = loadLevel(code, length, i);
+        // LOD l a; LIT n; OPR 2/3; STO l a => INC l a n
+        if (load >= 0 && op1 == Opcode.LIT && op2 == Opcode.OPR && free(targets, i, 4)
+                && (argument(code, i + 2) == 2 || argument(code, i + 2) == 3)
+                && storeLevel(code, length, i + 3) == load && argument(code, i + 3) == argument
+                && Opcode.fitsExtra(argument) && load <= Opcode.LEVEL_MAX) {
+            int n = argument(code, i + 1);
+            result[index] = Opcode.pack(Opcode.INC, load, argument);
+            result[index + 1] = argument(code, i + 2) == 2 ? n : -n;
+            return 4;
+        }
+        // LIT n; OPR k; JPC t => JLC k n t
+        if (op0 == Opcode.LIT && op1 == Opcode.OPR && op2 == Opcode.JPC && free(targets, i, 3)
+                && isRelation(argument(code, i + 1)) && Opcode.fitsExtra(argument)) {
+            result[index] = Opcode.pack(Opcode.JLC, argument(code, i + 1), argument);
+            result[index + 1] = argument(code, i + 2);
+            return 3;
+        }
+        // LIT n; STO l a => STL l a n
+        if (op0 == Opcode.LIT && storeLevel(code, length, i + 1) >= 0 && free(targets, i, 2)) {
+            int store = storeLevel(code, length, i + 1);
+            if (Opcode.fitsExtra(argument(code, i + 1)) && store <= Opcode.LEVEL_MAX) {
+                result[index] = Opcode.pack(Opcode.STL, store, argument(code, i + 1));
+                result[index + 1] = argument;
+                return 2;
+            }
+        }
+        // OPR k; JPC t => JNC k t
+        if (op0 == Opcode.OPR && op1 == Opcode.JPC && free(targets, i, 2)
+                && (isRelation(argument) || argument == 6)) {
+            result[index] = Opcode.pack(Opcode.JNC, argument);
+            result[index + 1] = argument(code, i + 1);
+            return 2;
+        }
+        // LOD l a; OPR k => LDO l a k
+        if (load >= 0 && load <= Opcode.LEVEL_MAX && op1 == Opcode.OPR && free(targets, i, 2)
+                && isBinary(argument(code, i + 1))) {
+            result[index] = Opcode.pack(Opcode.LDO, load, argument(code, i + 1));
+            result[index + 1] = argument;
+            return 2;
+        }
+        // LIT n; OPR k => LTO k n
+        if (op0 == Opcode.LIT && op1 == Opcode.OPR && free(targets, i, 2)
+                && isBinary(argument(code, i + 1))) {
+            result[index] = Opcode.pack(Opcode.LTO, argument(code, i + 1));
+            result[index + 1] = argument;
+            return 2;
+        }
+        // CAL l p (p 处为 INT s) => CLI l s p+1
+        if (op0 == Opcode.CAL) {
+            int entry = entry(code, argument);
+            if (op(code, entry) == Opcode.INT && Opcode.fitsExtra(argument(code, entry))) {
+                result[index] = Opcode.pack(Opcode.CLI, Opcode.level(code[i * Opcode.WIDTH]), argument(code, entry));
+                result[index + 1] = entry + 1;
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    // 读变量指令的层次差, 不是读变量指令时返回 -1
+    private int loadLevel(int[] code, int length, int index) {
+        return variableLevel(code, length, index, Opcode.LOD, Opcode.LDG);
+    }
+
+    private int storeLevel(int[] code, int length, int index) {
+        return variableLevel(code, length, index, Opcode.STO, Opcode.STG);
+    }
+
+    private int variableLevel(int[] code, int length, int index, int local, int global) {
+        int op = op(code, index, length);
+        if (op == local) {
+            return Opcode.level(code[index * Opcode.WIDTH]);
+        } else if (op == global) {
+            return levels[index];
+        }
+        return -1;
+    }
+
+    // 模式内部 (除第一条外) 的指令都不能是跳转目标
+    private boolean free(BitSet targets, int start, int length) {
+        int next = targets.nextSetBit(start + 1);
+        return next == -1 || next >= start + length;
+    }
+
+    private boolean isRelation(int operator) {
+        return operator >= 8 && operator <= 13;
+    }
+
+    private boolean isBinary(int operator) {
+        return operator >= 2 && operator <= 5 || isRelation(operator) || operator == 14;
+    }
+
+    private int op(int[] code, int index) {
+        return Opcode.op(code[index * Opcode.WIDTH]);
+    }
+
+    private int op(int[] code, int index, int length) {
+        return index < length ? op(code, index) : -1;
+    }
+
+    private int argument(int[] code, int index) {
+        return code[index * Opcode.WIDTH + 1];
+    }
+
+    public int getRewrites() {
+        return rewrites;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder(String.format("peephole: %d rewrites", rewrites));
+        Code[] codes = Code.values();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                res.append(String.format(", %s %d", codes[i], counts[i]));
+            }
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package compiler;
+
+import java.util.*;
+
+// 从 Pcode 中恢复过程结构: 每个过程的入口 (INT 指令), 结尾 (OPR 0 0), 静态层次, 栈帧大小和直接外层过程.
+// 只有从主程序出发能被调用到的过程才会出现在结果里
+final class Procedures implements Iterable<Procedures.Procedure> {
+    static final class Procedure {
+        // 入口为 INT 指令的地址, end 为结尾 OPR 0 0 的地址, 过程体即 [entry, end]
+        final int entry, end, level, size;
+        final Procedure parent;
+        // 调用到的过程
+        final Set<Procedure> callees = new LinkedHashSet<>();
+
+        Procedure(int entry, int end, int level, int size, Procedure parent) {
+            this.entry = entry;
+            this.end = end;
+            this.level = level;
+            this.size = size;
+            this.parent = parent;
+        }
+
+        // 沿静态链找到层次为 level 的外层过程
+        Procedure ancestor(int level) {
+            Procedure procedure = this;
+            while (procedure.level > level) {
+                procedure = procedure.parent;
+            }
+            return procedure;
+        }
+
+        boolean contains(int address) {
+            return address >= entry && address <= end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("procedure at %d, level: %d, size: %d", entry, level, size);
+        }
+    }
+
+    private final int[] code;
+    private final int length;
+    // 按入口地址排列
+    private final TreeMap<Integer, Procedure> procedures = new TreeMap<>();
+    private final Procedure main;
+
+    private Procedures(int[] code, int length) {
+        this.code = code;
+        this.length = length;
+        main = discover(0, null, 0);
+    }
+
+    static Procedures analyze(Interpreter interpreter) {
+        return new Procedures(interpreter.code, interpreter.arrayPtr);
+    }
+
+    static Procedures analyze(Program program) {
+        return new Procedures(program.code(), program.length());
+    }
+
+    Procedure main() {
+        return main;
+    }
+
+    Procedure get(int entry) {
+        return procedures.get(entry);
+    }
+
+    // 包含某条指令的过程
+    Procedure at(int address) {
+        Map.Entry<Integer, Procedure> entry = procedures.floorEntry(address);
+        return entry != null && entry.getValue().contains(address) ? entry.getValue() : null;
+    }
+
+    int size() {
+        return procedures.size();
+    }
+
+    @Override
+    public Iterator<Procedure> iterator() {
+        return procedures.values().iterator();
+    }
+
+    // 调用指令 (CAL, CLI 或 TCL) 所调用的过程入口
+    int callee(int index) {
+        int word = code[index * Opcode.WIDTH];
+        int target = code[index * Opcode.WIDTH + 1];
+        if (Opcode.op(word) == Opcode.CLI) {
+            // CLI 跳过了入口处的 INT
+            return target - 1;
+        }
+        return follow(target);
+    }
+
+    boolean isCall(int index) {
+        return Opcode.isCall(Opcode.op(code[index * Opcode.WIDTH]));
+    }
+
+    // 顺着 JMP 找到真正的目标
+    int follow(int address) {
+        int steps = 0;
+        while (address < length && Opcode.op(code[address * Opcode.WIDTH]) == Opcode.JMP && steps++ < length) {
+            address = code[address * Opcode.WIDTH + 1];
+        }
+        return address;
+    }
+
+    private Procedure discover(int address, Procedure parent, int level) {
+        int entry = follow(address);
+        Procedure procedure = procedures.get(entry);
+        if (procedure != null) {
+            return procedure;
+        }
+        int end = entry;
+        while (end < length && !isReturn(end)) {
+            end++;
+        }
+        if (end >= length || Opcode.op(code[entry * Opcode.WIDTH]) != Opcode.INT) {
+            throw new IllegalStateException("Malformed procedure at " + entry);
+        }
+        procedure = new Procedure(entry, end, level, code[entry * Opcode.WIDTH + 1], parent);
+        procedures.put(entry, procedure);
+        for (int i = entry; i < end; i++) {
+            if (isCall(i)) {
+                // 层次差为 d 的调用, 被调过程的外层是当前过程在 level - d 层的祖先
+                int difference = Opcode.level(code[i * Opcode.WIDTH]);
+                Procedure outer = procedure.ancestor(level - difference);
+                Procedure callee = discover(callee(i), outer, level - difference + 1);
+                procedure.callees.add(callee);
+            }
+        }
+        return procedure;
+    }
+
+    private boolean isReturn(int index) {
+        return Opcode.op(code[index * Opcode.WIDTH]) == Opcode.OPR && code[index * Opcode.WIDTH + 1] == 0;
+    }
+}
@@ -0,0 +1,124 @@
+package compiler;
+
+import java.util.*;
+
+// 一次剖析运行的统计结果: 各操作码和 OPR 子操作的执行次数, 每条指令的执行次数,
+// 每个过程被调用的次数以及运行栈的最大深度, 报告中的指令和过程都对应到源程序的行
+public class Profile {
+    // OPR 的子操作, 按编号排列
+    private static final String[] OPERATORS = {
+            "return", "neg", "add", "sub", "mul", "div", "odd", "", "eq", "ne", "lt", "le", "gt", "ge", "shl"
+    };
+    // 报告中列出的最热指令和行数
+    private static final int TOP = 10;
+    private final Program program;
+    private final Procedures procedures;
+    private final long[] opcodes = new long[Code.values().length];
+    private final long[] operators = new long[OPERATORS.length];
+    private final long[] hits;
+    // 过程入口地址到调用次数
+    private final Map<Integer, Long> calls = new TreeMap<>();
+    private long total;
+    private int maxStack = -1;
+
+    Profile(Program program) {
+        this.program = program;
+        this.procedures = Procedures.analyze(program);
+        this.hits = new long[program.length()];
+    }
+
+    // 在执行位于 pc 的指令之前调用
+    void count(int pc) {
+        int word = program.code()[pc * Opcode.WIDTH];
+        int op = Opcode.op(word);
+        total++;
+        hits[pc]++;
+        opcodes[op]++;
+        if (op == Opcode.OPR) {
+            operators[program.code()[pc * Opcode.WIDTH + 1]]++;
+        } else if (procedures.isCall(pc)) {
+            calls.merge(procedures.callee(pc), 1L, Long::sum);
+        }
+    }
+
+    // 在执行一条指令之后调用
+    void stack(int sp) {
+        maxStack = Math.max(maxStack, sp);
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getOpcodeCount(Code code) {
+        return opcodes[code.ordinal()];
+    }
+
+    public long getOperatorCount(int operator) {
+        return operators[operator];
+    }
+
+    public long getHits(int pc) {
+        return hits[pc];
+    }
+
+    public Map<Integer, Long> getCalls() {
+        return Collections.unmodifiableMap(calls);
+    }
+
+    // 运行栈使用过的最大单元数
+    public int getMaxStack() {
+        return maxStack + 1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder(String.format("profile: %d instructions, max stack %d%n", total, getMaxStack()));
+        res.append("opcodes:\n");
+        Code[] codes = Code.values();
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] != 0) {
+                res.append(String.format("  %-4s %12d %6.2f%%%n", codes[i], opcodes[i], percent(opcodes[i])));
+            }
+        }
+        res.append("operators:\n");
+        for (int i = 0; i < operators.length; i++) {
+            if (operators[i] != 0) {
+                res.append(String.format("  OPR %-2d %-6s %12d%n", i, OPERATORS[i], operators[i]));
+            }
+        }
+        res.append("calls:\n");
+        for (Map.Entry<Integer, Long> entry : calls.entrySet()) {
+            res.append(String.format("  %s, line %d: %d%n", procedures.get(entry.getKey()),
+                    program.getLine(entry.getKey()), entry.getValue()));
+        }
+        res.append("hot instructions:\n");
+        Integer[] order = new Integer[hits.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hits[b], hits[a]));
+        for (int i = 0; i < Math.min(TOP, order.length) && hits[order[i]] != 0; i++) {
+            int pc = order[i];
+            res.append(String.format("  %5d %-16s line %-4d %12d %6.2f%%%n", pc, program.getInstruction(pc),
+                    program.getLine(pc), hits[pc], percent(hits[pc])));
+        }
+        res.append("hot lines:\n");
+        Map<Integer, Long> lines = new HashMap<>();
+        for (int pc = 0; pc < hits.length; pc++) {
+            if (hits[pc] != 0) {
+                lines.merge(program.getLine(pc), hits[pc], Long::sum);
+            }
+        }
+        lines.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+                .limit(TOP)
+                .forEach(entry -> res.append(String.format("  line %-4d %12d %6.2f%%%n",
+                        entry.getKey(), entry.getValue(), percent(entry.getValue()))));
+        return res.toString();
+    }
+
+    private double percent(long count) {
+        return total == 0 ? 0 : 100.0 * count / total;
+    }
+}
@@ -0,0 +1,218 @@
+package compiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// 编译完成的程序: 代码和运行参数在创建后不再改变, 可以被多个线程同时执行,
+// 每次执行的状态都放在各自的 ExecutionContext (或线索化解释器, 编译后代码的运行时) 中
+public final class Program {
+    private final int[] code;
+    private final int[] lines;
+    private final int length;
+    private final int headroom;
+    private final int stackLimit, initialStack, flushThreshold;
+    // 按需构造, 构造后只读
+    private ThreadedInterpreter threaded;
+    private JitCompiler jit;
+    private boolean jitFailed;
+    private RegisterInterpreter register;
+    private boolean registerFailed;
+    // 调用和回边的计数以及编译结果在多次执行之间共享
+    private TieredCompiler tiered;
+    // 各个引擎无法编译而退回到解释执行的原因, 由调用者决定是否显示
+    private final List<String> fallbacks = Collections.synchronizedList(new ArrayList<>());
+
+    Program(int[] code, int[] lines, int length, int stackLimit, int initialStack, int flushThreshold) {
+        this.code = Arrays.copyOf(code, length * Opcode.WIDTH);
+        this.lines = Arrays.copyOf(lines, length);
+        this.length = length;
+        this.headroom = headroom(this.code, length);
+        this.stackLimit = stackLimit;
+        this.initialStack = initialStack;
+        this.flushThreshold = flushThreshold;
+    }
+
+    // 一个过程内表达式求值最多占用的栈单元数, 加上调用时写入的三个联系单元和 RED 使用的一个临时单元.
+    // 只要在分配栈帧时预留出这么多空间, 执行其余指令时就不必检查栈是否够用
+    private static int headroom(int[] code, int length) {
+        int depth = 0, max = 0;
+        for (int i = 0; i < length; i++) {
+            int op = Opcode.op(code[i * Opcode.WIDTH]);
+            int argument = code[i * Opcode.WIDTH + 1];
+            switch (op) {
+                case Opcode.LIT:
+                case Opcode.LOD:
+                case Opcode.LDG:
+                    depth++;
+                    break;
+                case Opcode.INT:
+                    depth = 0;
+                    break;
+                case Opcode.OPR:
+                    if (argument >= 2 && argument != 6) {
+                        depth--;
+                    }
+                    break;
+                case Opcode.JNC:
+                    depth -= Opcode.level(code[i * Opcode.WIDTH]) == 6 ? 1 : 2;
+                    break;
+                case Opcode.STO:
+                case Opcode.STG:
+                case Opcode.WRT:
+                case Opcode.JPC:
+                case Opcode.JLC:
+                    depth--;
+                    break;
+            }
+            max = Math.max(max, depth);
+        }
+        return max + 4;
+    }
+
+    // 执行引擎直接读取的代码, 不能修改
+    int[] code() {
+        return code;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // 指令对应的源程序行号
+    public int getLine(int index) {
+        return lines[index];
+    }
+
+    int headroom() {
+        return headroom;
+    }
+
+    int getStackLimit() {
+        return stackLimit;
+    }
+
+    int initialStack() {
+        return initialStack;
+    }
+
+    public Instruction getInstruction(int index) {
+        int word = code[index * Opcode.WIDTH];
+        return new Instruction(Opcode.code(word), Opcode.level(word), Opcode.extra(word), code[index * Opcode.WIDTH + 1]);
+    }
+
+    public List<Instruction> getInstructions() {
+        List<Instruction> res = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            res.add(getInstruction(i));
+        }
+        return res;
+    }
+
+    public ExecutionContext newContext(BufferedReader in, BufferedWriter out) {
+        return new ExecutionContext(this, new IntReader(in), new IntWriter(out, flushThreshold));
+    }
+
+    public void interpret(BufferedReader in, BufferedWriter out) {
+        interpret(in, out, Engine.SWITCH);
+    }
+
+    public void interpret(BufferedReader in, BufferedWriter out, Engine engine) {
+        interpret(new IntReader(in), new IntWriter(out, flushThreshold), engine);
+    }
+
+    // 无论正常结束还是出错, 都把缓冲中的输出写出
+    public void interpret(IntReader in, IntWriter out, Engine engine) {
+        try {
+            if (engine == Engine.THREADED) {
+                threaded().interpret(in, out);
+            } else if (engine == Engine.JIT && jit() != null) {
+                jit.execute(in, out);
+            } else if (engine == Engine.REGISTER && register() != null) {
+                register.interpret(in, out);
+            } else if (engine == Engine.TIERED) {
+                new ExecutionContext(this, in, out, tiered()).run(Long.MAX_VALUE);
+            } else {
+                new ExecutionContext(this, in, out).run(Long.MAX_VALUE);
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    // 逐条执行并统计, 只在需要剖析时使用, 不影响正常的解释循环
+    public Profile profile(BufferedReader in, BufferedWriter out) {
+        return profile(new IntReader(in), new IntWriter(out, flushThreshold));
+    }
+
+    public Profile profile(IntReader in, IntWriter out) {
+        Profile profile = new Profile(this);
+        ExecutionContext context = new ExecutionContext(this, in, out);
+        try {
+            while (!context.isFinished()) {
+                profile.count(context.pc());
+                context.run(1);
+                profile.stack(context.sp());
+            }
+        } finally {
+            out.flush();
+        }
+        return profile;
+    }
+
+    private synchronized ThreadedInterpreter threaded() {
+        if (threaded == null) {
+            threaded = new ThreadedInterpreter(this);
+        }
+        return threaded;
+    }
+
+    private synchronized TieredCompiler tiered() {
+        if (tiered == null) {
+            tiered = new TieredCompiler(this);
+        }
+        return tiered;
+    }
+
+    // 翻译成的寄存器代码, 无法翻译时返回 null, 由调用者退回到解释执行
+    synchronized RegisterInterpreter register() {
+        if (register == null && !registerFailed) {
+            try {
+                register = new RegisterCompiler(this).compile();
+            } catch (UnsupportedOperationException error) {
+                fallback("REGISTER: " + error.getMessage());
+                registerFailed = true;
+            }
+        }
+        return register;
+    }
+
+    void fallback(String reason) {
+        fallbacks.add(reason);
+    }
+
+    // 到目前为止各个引擎退回到解释执行的原因
+    public List<String> getFallbacks() {
+        synchronized (fallbacks) {
+            return new ArrayList<>(fallbacks);
+        }
+    }
+
+    // 编译后的代码, 无法编译时返回 null, 由调用者退回到解释执行
+    private synchronized JitCompiler jit() {
+        if (jit == null && !jitFailed) {
+            JitCompiler compiler = new JitCompiler(this);
+            try {
+                compiler.compile();
+                jit = compiler;
+            } catch (UnsupportedOperationException error) {
+                fallback("JIT: " + error.getMessage());
+                jitFailed = true;
+            }
+        }
+        return jit;
+    }
+}
@@ -0,0 +1,100 @@
+package compiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// 编译后程序的二进制格式, 编译一次后可以在其他进程中直接加载执行. 所有数据都是大端的 int:
+// 文件头: 魔数 "PL0C", 版本, 操作码个数, 指令条数 n, 过程个数 p, 其后各段的 CRC32;
+// 代码段: 2n 个 int, 与 Opcode 规定的内存中格式相同; 过程表: 每个过程的入口, 结尾, 层次和栈帧大小;
+// 行号表: n 条指令对应的源程序行号.
+// 运行参数 (栈上限等) 不写入文件, 加载时由调用者给出
+public final class ProgramFile {
+    public static final int MAGIC = 0x504C3043;
+    // 指令格式或各段的布局改变时增加版本号
+    public static final int VERSION = 1;
+    private static final int HEADER = 6 * Integer.BYTES;
+    private static final int PROCEDURE = 4;
+
+    private ProgramFile() {
+    }
+
+    public static void write(Program program, Path path) throws IOException {
+        int length = program.length();
+        Procedures procedures = Procedures.analyze(program);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER
+                + (length * Opcode.WIDTH + procedures.size() * PROCEDURE + length) * Integer.BYTES);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.position(HEADER / Integer.BYTES);
+        ints.put(program.code(), 0, length * Opcode.WIDTH);
+        for (Procedures.Procedure procedure : procedures) {
+            ints.put(procedure.entry).put(procedure.end).put(procedure.level).put(procedure.size);
+        }
+        for (int i = 0; i < length; i++) {
+            ints.put(program.getLine(i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(HEADER, buffer.capacity() - HEADER));
+        ints.put(0, MAGIC).put(1, VERSION).put(2, Code.values().length).put(3, length)
+                .put(4, procedures.size()).put(5, (int) crc.getValue());
+        Files.write(path, buffer.array());
+    }
+
+    // 文件是否以魔数开头
+    public static boolean isProgramFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            return channel.read(magic) == Integer.BYTES && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    // 把文件映射到内存, 校验后把代码段和行号表整块复制到执行引擎使用的数组中, 不逐条解析指令
+    public static Program load(Path path, int stackLimit, int initialStack, int flushThreshold) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER) {
+                throw new IOException(path + ": not a compiled PL/0 program");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            IntBuffer ints = buffer.asIntBuffer();
+            if (ints.get(0) != MAGIC) {
+                throw new IOException(path + ": not a compiled PL/0 program");
+            }
+            if (ints.get(1) != VERSION || ints.get(2) > Code.values().length) {
+                throw new IOException(path + ": unsupported format version " + ints.get(1));
+            }
+            int length = ints.get(3), count = ints.get(4);
+            if (length <= 0 || count <= 0
+                    || size != HEADER + ((long) length * Opcode.WIDTH + (long) count * PROCEDURE + length) * Integer.BYTES) {
+                throw new IOException(path + ": truncated or corrupt program");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(HEADER, (int) size - HEADER));
+            if ((int) crc.getValue() != ints.get(5)) {
+                throw new IOException(path + ": checksum mismatch");
+            }
+
+            int[] code = new int[length * Opcode.WIDTH];
+            ints.position(HEADER / Integer.BYTES);
+            ints.get(code);
+            // 过程表只用来检查代码段的结构, 执行引擎需要时会从代码中重新分析
+            for (int k = 0; k < count; k++) {
+                int entry = ints.get(), end = ints.get(), level = ints.get(), frame = ints.get();
+                if (entry < 0 || end >= length || entry > end || level < 0
+                        || Opcode.op(code[entry * Opcode.WIDTH]) != Opcode.INT || code[entry * Opcode.WIDTH + 1] != frame
+                        || Opcode.op(code[end * Opcode.WIDTH]) != Opcode.OPR || code[end * Opcode.WIDTH + 1] != 0) {
+                    throw new IOException(path + ": corrupt procedure table");
+                }
+            }
+            int[] lines = new int[length];
+            ints.get(lines);
+            return new Program(code, lines, length, stackLimit, initialStack, flushThreshold);
+        }
+    }
+}
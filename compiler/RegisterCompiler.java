@@ -0,0 +1,368 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// 把 Pcode 翻译成寄存器中间代码. 逐个过程模拟操作数栈: 栈中的每一项记录为常数, 变量所在的栈帧单元,
+// 或第 d 层栈对应的临时寄存器 (过程的变量之后的第 d 个单元), 只有需要时才生成指令把值放入寄存器.
+// 变量的层次和地址直接沿用 Pcode 中的编码, 因此两种代码在同一个运行栈上使用相同的栈帧布局
+public class RegisterCompiler {
+    // 操作数栈中一项的种类
+    private static final int CONSTANT = 0, SLOT = 1, TEMP = 2;
+
+    private final Program program;
+    private final Procedures procedures;
+    private final int[] code;
+    // Pcode 地址到寄存器代码地址
+    private final int[] map;
+    private final BitSet targets = new BitSet();
+    private int[] result = new int[256 * RegisterOpcode.WIDTH];
+    private int size;
+    // 当前过程的状态
+    private int[] kinds, values;
+    private int depth, maxDepth, base;
+    // 当前过程访问主程序变量时的层次差, 即过程所在的层次
+    private int mainLevel;
+    // 最后一条指令若把结果写入临时寄存器, 为它的地址, 否则为 -1
+    private int producer;
+
+    public RegisterCompiler(Program program) {
+        this.program = program;
+        this.code = program.code();
+        this.procedures = Procedures.analyze(program);
+        this.map = new int[program.length() + 1];
+        this.kinds = new int[program.headroom()];
+        this.values = new int[program.headroom()];
+    }
+
+    // 无法翻译时抛出 UnsupportedOperationException
+    public RegisterInterpreter compile() {
+        int length = program.length();
+        Arrays.fill(map, -1);
+        for (int i = 0; i < length; i++) {
+            int op = Opcode.op(code[i * Opcode.WIDTH]);
+            if (Opcode.isJump(op) && !Opcode.isCall(op)) {
+                targets.set(code[i * Opcode.WIDTH + 1]);
+            }
+        }
+        // 地址 0 仍然是跳到主程序的入口, 主程序返回到地址 0 时结束
+        emit(RegisterOpcode.JMP, 0, procedures.main().entry, 0, 0);
+        for (Procedures.Procedure procedure : procedures) {
+            lower(procedure);
+        }
+        // Pcode 地址换成寄存器代码地址
+        for (int i = 0; i < size; i++) {
+            int op = RegisterOpcode.op(result[i * RegisterOpcode.WIDTH]);
+            if (RegisterOpcode.isJump(op)) {
+                int field = i * RegisterOpcode.WIDTH + RegisterOpcode.targetField(op);
+                if (map[result[field]] < 0) {
+                    throw new UnsupportedOperationException("Jump into untranslated code at " + result[field]);
+                }
+                result[field] = map[result[field]];
+            }
+        }
+        return new RegisterInterpreter(program, Arrays.copyOf(result, size * RegisterOpcode.WIDTH), size);
+    }
+
+    private void lower(Procedures.Procedure procedure) {
+        base = procedure.size;
+        mainLevel = procedure.level;
+        depth = 0;
+        maxDepth = 0;
+        producer = -1;
+        int start = size;
+        for (int i = procedure.entry; i <= procedure.end; i++) {
+            map[i] = size;
+            if (targets.get(i) && depth != 0) {
+                throw new UnsupportedOperationException("Operand stack not empty at " + i);
+            }
+            lower(procedure, i);
+        }
+        // 栈帧包括变量和用到的临时寄存器, 回填入口和过程内的调用
+        int frame = base + maxDepth;
+        for (int i = start; i < size; i++) {
+            int op = RegisterOpcode.op(result[i * RegisterOpcode.WIDTH]);
+            if (op == RegisterOpcode.ENTER) {
+                result[i * RegisterOpcode.WIDTH + 1] = frame;
+            } else if (op == RegisterOpcode.CALL) {
+                result[i * RegisterOpcode.WIDTH + 2] = frame;
+            }
+        }
+    }
+
+    private void lower(Procedures.Procedure procedure, int i) {
+        int word = code[i * Opcode.WIDTH];
+        int argument = code[i * Opcode.WIDTH + 1];
+        int level = Opcode.level(word);
+        switch (Opcode.op(word)) {
+            case Opcode.LIT:
+                push(CONSTANT, argument);
+                break;
+            case Opcode.LOD:
+                load(level, argument);
+                break;
+            case Opcode.LDG:
+                load(mainLevel, argument);
+                break;
+            case Opcode.STO:
+                store(level, argument);
+                break;
+            case Opcode.STG:
+                store(mainLevel, argument);
+                break;
+            case Opcode.OPR:
+                operation(argument);
+                break;
+            case Opcode.INT:
+                if (i != procedure.entry) {
+                    throw new UnsupportedOperationException("INT outside procedure entry at " + i);
+                }
+                emit(RegisterOpcode.ENTER, 0, 0, 0, 0);
+                break;
+            case Opcode.JMP:
+                emit(RegisterOpcode.JMP, 0, argument, 0, 0);
+                break;
+            case Opcode.JPC:
+                branch(argument);
+                break;
+            case Opcode.CAL:
+            case Opcode.CLI:
+                call(level, procedures.callee(i));
+                break;
+            case Opcode.TCL:
+                // 被调过程复用当前栈帧, 返回时直接回到当前过程的调用者. 操作数栈不空时 (不会由尾调用消除产生)
+                // 按普通调用翻译, 其后的返回指令照常执行
+                if (depth == 0) {
+                    emit(RegisterOpcode.TCALL, level, procedures.callee(i), 0, 0);
+                } else {
+                    call(level, procedures.callee(i));
+                }
+                break;
+            case Opcode.WRT:
+                if (kinds[depth - 1] == CONSTANT) {
+                    emit(RegisterOpcode.WRITEK, 0, values[depth - 1], 0, 0);
+                } else {
+                    emit(RegisterOpcode.WRITE, 0, register(depth - 1), 0, 0);
+                }
+                depth--;
+                break;
+            case Opcode.RED:
+                if (level == 0) {
+                    materialize(argument);
+                }
+                emit(RegisterOpcode.READ, level, argument, 0, 0);
+                break;
+            case Opcode.INC:
+                // 按 LOD; LIT; OPR 2; STO 翻译, 局部变量最终成为一条 ADDK
+                load(level, Opcode.extra(word));
+                push(CONSTANT, argument);
+                binary(2);
+                store(level, Opcode.extra(word));
+                break;
+            case Opcode.STL:
+                push(CONSTANT, argument);
+                store(level, Opcode.extra(word));
+                break;
+            case Opcode.LDO:
+                load(level, argument);
+                binary(Opcode.extra(word));
+                break;
+            case Opcode.LTO:
+                push(CONSTANT, argument);
+                binary(level);
+                break;
+            case Opcode.JNC:
+                operation(level);
+                branch(argument);
+                break;
+            case Opcode.JLC:
+                push(CONSTANT, Opcode.extra(word));
+                binary(level);
+                branch(argument);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unknown opcode " + Opcode.op(word) + " at " + i);
+        }
+    }
+
+    private void load(int level, int address) {
+        if (level == 0) {
+            push(SLOT, address);
+        } else {
+            int temp = temp(depth);
+            if (level == mainLevel) {
+                emitProducer(RegisterOpcode.LOADG, 0, temp, address, 0);
+            } else {
+                emitProducer(RegisterOpcode.LOADO, level, temp, address, 0);
+            }
+            push(TEMP, temp);
+        }
+    }
+
+    private void store(int level, int address) {
+        int top = depth - 1;
+        if (level == 0) {
+            // 栈中其余引用这个变量的项要先取出旧值
+            depth--;
+            materialize(address);
+            depth++;
+            if (kinds[top] == CONSTANT) {
+                emit(RegisterOpcode.MOVK, 0, address, values[top], 0);
+            } else if (kinds[top] == TEMP && producer == size - 1 && result[producer * RegisterOpcode.WIDTH + 1] == values[top]) {
+                // 直接把上一条指令的结果写入变量
+                result[producer * RegisterOpcode.WIDTH + 1] = address;
+            } else if (kinds[top] != SLOT || values[top] != address) {
+                emit(RegisterOpcode.MOV, 0, address, values[top], 0);
+            }
+        } else {
+            int value = register(top);
+            if (level == mainLevel) {
+                emit(RegisterOpcode.STOREG, 0, address, value, 0);
+            } else {
+                emit(RegisterOpcode.STOREO, level, address, value, 0);
+            }
+        }
+        depth--;
+    }
+
+    private void operation(int operator) {
+        switch (operator) {
+            case 0:
+                emit(RegisterOpcode.RET, 0, 0, 0, 0);
+                break;
+            case 1:
+            case 6:
+                unary(operator);
+                break;
+            default:
+                binary(operator);
+        }
+    }
+
+    private void unary(int operator) {
+        int top = depth - 1;
+        if (kinds[top] == CONSTANT) {
+            values[top] = operator == 1 ? -values[top] : values[top] & 1;
+            return;
+        }
+        int temp = temp(top);
+        emitProducer(operator == 1 ? RegisterOpcode.NEG : RegisterOpcode.ODD, 0, temp, register(top), 0);
+        kinds[top] = TEMP;
+        values[top] = temp;
+    }
+
+    private void binary(int operator) {
+        int left = depth - 2, right = depth - 1;
+        if (kinds[left] == CONSTANT && kinds[right] == CONSTANT && !(operator == 5 && values[right] == 0)) {
+            values[left] = Interpreter.operate(operator, values[left], values[right]);
+            depth--;
+            return;
+        }
+        int x = register(left);
+        int temp = temp(left);
+        boolean relation = operator >= 8 && operator <= 13;
+        if (kinds[right] == CONSTANT) {
+            int op = relation ? RegisterOpcode.CMPK
+                    : operator == 14 ? RegisterOpcode.SHLK : RegisterOpcode.ADDK + operator - 2;
+            emitProducer(op, relation ? operator : 0, temp, x, values[right]);
+        } else {
+            int op = relation ? RegisterOpcode.CMP
+                    : operator == 14 ? RegisterOpcode.SHL : RegisterOpcode.ADD + operator - 2;
+            emitProducer(op, relation ? operator : 0, temp, x, register(right));
+        }
+        depth -= 2;
+        push(TEMP, temp);
+    }
+
+    // JPC: 条件为刚计算出的比较结果时合并成 BRF
+    private void branch(int target) {
+        int top = depth - 1;
+        depth--;
+        if (kinds[top] == CONSTANT) {
+            if (values[top] == 0) {
+                emit(RegisterOpcode.JMP, 0, target, 0, 0);
+            }
+            return;
+        }
+        if (kinds[top] == TEMP && producer == size - 1) {
+            int index = producer * RegisterOpcode.WIDTH;
+            int op = RegisterOpcode.op(result[index]);
+            if ((op == RegisterOpcode.CMP || op == RegisterOpcode.CMPK) && result[index + 1] == values[top]) {
+                result[index] = RegisterOpcode.pack(op == RegisterOpcode.CMP ? RegisterOpcode.BRF : RegisterOpcode.BRFK,
+                        RegisterOpcode.modifier(result[index]));
+                result[index + 1] = result[index + 2];
+                result[index + 2] = result[index + 3];
+                result[index + 3] = target;
+                producer = -1;
+                return;
+            }
+        }
+        emit(RegisterOpcode.JZ, 0, register(top), target, 0);
+    }
+
+    private void call(int level, int entry) {
+        // 被调过程可能修改栈中引用的变量
+        for (int d = 0; d < depth; d++) {
+            if (kinds[d] == SLOT) {
+                register(d, true);
+            }
+        }
+        emit(RegisterOpcode.CALL, level, entry, 0, 0);
+    }
+
+    private void push(int kind, int value) {
+        kinds[depth] = kind;
+        values[depth] = value;
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private int temp(int d) {
+        return base + d;
+    }
+
+    private int register(int d) {
+        return register(d, false);
+    }
+
+    // 把栈中第 d 项放入寄存器, 返回寄存器编号; copy 为真时变量也要复制到临时寄存器中
+    private int register(int d, boolean copy) {
+        if (kinds[d] == CONSTANT) {
+            emit(RegisterOpcode.MOVK, 0, temp(d), values[d], 0);
+        } else if (kinds[d] == SLOT && copy) {
+            emit(RegisterOpcode.MOV, 0, temp(d), values[d], 0);
+        } else {
+            return values[d];
+        }
+        kinds[d] = TEMP;
+        values[d] = temp(d);
+        return values[d];
+    }
+
+    // 写变量之前, 把栈中引用它的项复制到临时寄存器
+    private void materialize(int address) {
+        for (int d = 0; d < depth; d++) {
+            if (kinds[d] == SLOT && values[d] == address) {
+                register(d, true);
+            }
+        }
+    }
+
+    private void emitProducer(int op, int modifier, int a, int b, int c) {
+        emit(op, modifier, a, b, c);
+        producer = size - 1;
+    }
+
+    private void emit(int op, int modifier, int a, int b, int c) {
+        if ((size + 1) * RegisterOpcode.WIDTH > result.length) {
+            result = Arrays.copyOf(result, result.length * 2);
+        }
+        int index = size * RegisterOpcode.WIDTH;
+        result[index] = RegisterOpcode.pack(op, modifier);
+        result[index + 1] = a;
+        result[index + 2] = b;
+        result[index + 3] = c;
+        size++;
+        producer = -1;
+    }
+}
@@ -0,0 +1,176 @@
+package compiler;
+
+import java.util.Arrays;
+
+// 执行寄存器中间代码. 与 Pcode 解释器使用相同的运行栈, display 和调用约定,
+// 区别在于表达式的中间结果放在栈帧内固定的单元中, 不再逐条压栈出栈.
+// 代码在构造后不再改变, 可以被多个线程同时执行
+public class RegisterInterpreter {
+    private final Program program;
+    private final int[] code;
+    private final int length;
+
+    RegisterInterpreter(Program program, int[] code, int length) {
+        this.program = program;
+        this.code = code;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void printInstructions() {
+        for (int i = 0; i < length; i++) {
+            System.out.println(i + "\t" + RegisterOpcode.toString(code, i));
+        }
+        System.out.println();
+    }
+
+    public void interpret(IntReader in, IntWriter out) {
+        int[] stack = new int[program.initialStack()];
+        int[] code = this.code;
+        int limit = program.getStackLimit();
+        int pc = 0, bp = 0;
+        int[] display = new int[TokenTable.LEVEL_MAX + 1];
+        int[] saved = new int[Interpreter.savedSize(stack.length)];
+        int lev = 0, csp = 2;
+        do {
+            int index = pc * RegisterOpcode.WIDTH;
+            int word = code[index];
+            int a = code[index + 1], b = code[index + 2], c = code[index + 3];
+            pc++;
+            switch (RegisterOpcode.op(word)) {
+                case RegisterOpcode.MOV:
+                    stack[bp + a] = stack[bp + b];
+                    break;
+                case RegisterOpcode.MOVK:
+                    stack[bp + a] = b;
+                    break;
+                case RegisterOpcode.ADD:
+                    stack[bp + a] = stack[bp + b] + stack[bp + c];
+                    break;
+                case RegisterOpcode.SUB:
+                    stack[bp + a] = stack[bp + b] - stack[bp + c];
+                    break;
+                case RegisterOpcode.MUL:
+                    stack[bp + a] = stack[bp + b] * stack[bp + c];
+                    break;
+                case RegisterOpcode.DIV:
+                    stack[bp + a] = stack[bp + b] / stack[bp + c];
+                    break;
+                case RegisterOpcode.ADDK:
+                    stack[bp + a] = stack[bp + b] + c;
+                    break;
+                case RegisterOpcode.SUBK:
+                    stack[bp + a] = stack[bp + b] - c;
+                    break;
+                case RegisterOpcode.MULK:
+                    stack[bp + a] = stack[bp + b] * c;
+                    break;
+                case RegisterOpcode.DIVK:
+                    stack[bp + a] = stack[bp + b] / c;
+                    break;
+                case RegisterOpcode.SHL:
+                    stack[bp + a] = stack[bp + b] << stack[bp + c];
+                    break;
+                case RegisterOpcode.SHLK:
+                    stack[bp + a] = stack[bp + b] << c;
+                    break;
+                case RegisterOpcode.CMP:
+                    stack[bp + a] = Interpreter.operate(RegisterOpcode.modifier(word), stack[bp + b], stack[bp + c]);
+                    break;
+                case RegisterOpcode.CMPK:
+                    stack[bp + a] = Interpreter.operate(RegisterOpcode.modifier(word), stack[bp + b], c);
+                    break;
+                case RegisterOpcode.NEG:
+                    stack[bp + a] = -stack[bp + b];
+                    break;
+                case RegisterOpcode.ODD:
+                    stack[bp + a] = stack[bp + b] & 1;
+                    break;
+                case RegisterOpcode.LOADO:
+                    stack[bp + a] = stack[display[lev - RegisterOpcode.modifier(word)] + b];
+                    break;
+                case RegisterOpcode.STOREO:
+                    stack[display[lev - RegisterOpcode.modifier(word)] + a] = stack[bp + b];
+                    break;
+                case RegisterOpcode.LOADG:
+                    // 主程序的栈帧基址总是 0
+                    stack[bp + a] = stack[b];
+                    break;
+                case RegisterOpcode.STOREG:
+                    stack[a] = stack[bp + b];
+                    break;
+                case RegisterOpcode.JMP:
+                    pc = a;
+                    break;
+                case RegisterOpcode.JZ:
+                    if (stack[bp + a] == 0) {
+                        pc = b;
+                    }
+                    break;
+                case RegisterOpcode.BRF:
+                    if (Interpreter.operate(RegisterOpcode.modifier(word), stack[bp + a], stack[bp + b]) == 0) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterOpcode.BRFK:
+                    if (Interpreter.operate(RegisterOpcode.modifier(word), stack[bp + a], b) == 0) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterOpcode.CALL: {
+                    // 新栈帧紧接在调用者的变量和临时寄存器之后
+                    int level = RegisterOpcode.modifier(word);
+                    int frame = bp + b;
+                    stack[frame] = display[lev - level];
+                    stack[frame + 1] = bp;
+                    stack[frame + 2] = pc;
+                    bp = frame;
+                    saved[csp++] = display[lev - level + 1];
+                    saved[csp++] = lev;
+                    lev = lev - level + 1;
+                    display[lev] = bp;
+                    pc = a;
+                    break;
+                }
+                case RegisterOpcode.TCALL: {
+                    // 与 ExecutionContext 中的 TCL 相同: 撤销当前过程对 display 的修改, 在同一个栈帧上进入被调过程,
+                    // 动态链和返回地址不变. 层次差至少为 1, 静态链不会指向被复用的栈帧
+                    int callee = lev - RegisterOpcode.modifier(word) + 1;
+                    stack[bp] = display[lev - RegisterOpcode.modifier(word)];
+                    display[lev] = saved[csp - 2];
+                    saved[csp - 2] = display[callee];
+                    display[callee] = bp;
+                    lev = callee;
+                    pc = a;
+                    break;
+                }
+                case RegisterOpcode.ENTER:
+                    // 本过程的栈帧和下一次调用写入的三个联系单元
+                    if (bp + a + 3 > stack.length) {
+                        stack = Interpreter.grow(stack, bp + a + 3, limit);
+                        saved = Arrays.copyOf(saved, Interpreter.savedSize(stack.length));
+                    }
+                    break;
+                case RegisterOpcode.RET:
+                    pc = stack[bp + 2];
+                    bp = stack[bp + 1];
+                    display[lev] = saved[csp - 2];
+                    lev = saved[csp - 1];
+                    csp -= 2;
+                    break;
+                case RegisterOpcode.WRITE:
+                    out.write(stack[bp + a]);
+                    break;
+                case RegisterOpcode.WRITEK:
+                    out.write(a);
+                    break;
+                case RegisterOpcode.READ:
+                    stack[display[lev - RegisterOpcode.modifier(word)] + a] = in.nextInt();
+                    break;
+            }
+        } while (pc != 0);
+    }
+}
@@ -0,0 +1,101 @@
+package compiler;
+
+// 寄存器中间代码的编码: 每条指令占 4 个 int, 第一个 int 的低 8 位为操作码, 8~15 位为比较运算编号或层次差,
+// 其余三个 int 为操作数. 寄存器就是当前栈帧中的单元 (相对 bp 的偏移), 变量之后的单元用作临时寄存器.
+// 下面的注释中 d, x, y 为寄存器, k 为常数, t 为跳转目标, r 为比较运算 (与 OPR 的编号一致)
+final class RegisterOpcode {
+    // MOV d x / MOVK d k
+    static final int MOV = 0;
+    static final int MOVK = 1;
+    // ADD d x y: d = x + y, 其余算术运算相同; 带 K 的版本第二个操作数为常数
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;
+    static final int ADDK = 6;
+    static final int SUBK = 7;
+    static final int MULK = 8;
+    static final int DIVK = 9;
+    // CMP r d x y: d = x r y ? 1 : 0
+    static final int CMP = 10;
+    static final int CMPK = 11;
+    // NEG d x / ODD d x
+    static final int NEG = 12;
+    static final int ODD = 13;
+    // LOADO l d a / STOREO l a x: 通过 display 读写层次差为 l 的变量
+    static final int LOADO = 14;
+    static final int STOREO = 15;
+    // LOADG d a / STOREG a x: 在过程中读写主程序的变量
+    static final int LOADG = 16;
+    static final int STOREG = 17;
+    // JMP t / JZ x t: x 为 0 时跳转
+    static final int JMP = 18;
+    static final int JZ = 19;
+    // BRF r x y t: x r y 不成立时跳转
+    static final int BRF = 20;
+    static final int BRFK = 21;
+    // CALL l t s: 调用层次差为 l 的过程, s 为调用者栈帧 (变量和临时寄存器) 的大小
+    static final int CALL = 22;
+    // ENTER s: 过程入口, 保证大小为 s 的栈帧和下一次调用的联系单元在运行栈内
+    static final int ENTER = 23;
+    static final int RET = 24;
+    // WRITE x / WRITEK k / READ l a
+    static final int WRITE = 25;
+    static final int WRITEK = 26;
+    static final int READ = 27;
+    // SHL d x y / SHLK d x k: d = x << y, 由乘以 2 的幂的强度削减生成
+    static final int SHL = 28;
+    static final int SHLK = 29;
+    // TCALL l t: 尾调用, 在当前栈帧上进入层次差为 l 的过程, 返回时直接回到当前过程的调用者
+    static final int TCALL = 30;
+
+    static final int WIDTH = 4;
+
+    private static final String[] NAMES = {
+            "MOV", "MOVK", "ADD", "SUB", "MUL", "DIV", "ADDK", "SUBK", "MULK", "DIVK", "CMP", "CMPK", "NEG", "ODD",
+            "LOADO", "STOREO", "LOADG", "STOREG", "JMP", "JZ", "BRF", "BRFK", "CALL", "ENTER", "RET",
+            "WRITE", "WRITEK", "READ", "SHL", "SHLK", "TCALL"
+    };
+
+    private RegisterOpcode() {
+    }
+
+    static int pack(int op, int modifier) {
+        return op | modifier << 8;
+    }
+
+    static int op(int word) {
+        return word & 0xFF;
+    }
+
+    static int modifier(int word) {
+        return (word >>> 8) & 0xFF;
+    }
+
+    static boolean isJump(int op) {
+        return op == JMP || op == JZ || op == BRF || op == BRFK || op == CALL || op == TCALL;
+    }
+
+    // 跳转目标所在的操作数位置
+    static int targetField(int op) {
+        switch (op) {
+            case JMP:
+            case CALL:
+            case TCALL:
+                return 1;
+            case JZ:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    static String toString(int[] code, int index) {
+        int base = index * WIDTH;
+        int word = code[base];
+        String modifier = op(word) == CMP || op(word) == CMPK || op(word) == BRF || op(word) == BRFK
+                || op(word) == LOADO || op(word) == STOREO || op(word) == CALL || op(word) == TCALL || op(word) == READ
+                ? "." + modifier(word) : "";
+        return String.format("%s%s %d %d %d", NAMES[op(word)], modifier, code[base + 1], code[base + 2], code[base + 3]);
+    }
+}
@@ -0,0 +1,84 @@
+package compiler;
+
+import java.util.concurrent.*;
+
+// 在少量工作线程上轮流执行大量程序: 每个程序每次最多执行一个时间片的指令,
+// 没有结束就回到队尾, 这样死循环的程序也不会长期占住线程
+public class Scheduler {
+    public static final long SLICE = 10000;
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService workers;
+    private final long slice;
+
+    public Scheduler(int threads) {
+        this(threads, SLICE);
+    }
+
+    public Scheduler(int threads, long slice) {
+        this.slice = slice;
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "pl0-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    // 提交一个程序, 程序结束时 Future 完成; 执行指令数超过 maxInstructions 时以 TimeoutException 结束
+    public CompletableFuture<ExecutionContext> submit(ExecutionContext context, long maxInstructions) {
+        Task task = new Task(context, maxInstructions);
+        queue.add(task);
+        return task.result;
+    }
+
+    public CompletableFuture<ExecutionContext> submit(ExecutionContext context) {
+        return submit(context, Long.MAX_VALUE);
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task = queue.take();
+                if (task.result.isDone()) {
+                    // 已被调用者取消
+                    continue;
+                }
+                ExecutionContext context = task.context;
+                try {
+                    long remaining = task.maxInstructions - context.getSteps();
+                    if (context.run(Math.min(slice, remaining))) {
+                        task.result.complete(context);
+                    } else if (context.getSteps() >= task.maxInstructions) {
+                        context.stop();
+                        task.result.completeExceptionally(new TimeoutException(
+                                "Instruction limit " + task.maxInstructions + " exceeded"));
+                    } else {
+                        queue.add(task);
+                    }
+                } catch (Throwable e) {
+                    // 包括扩大运行栈时的 OutOfMemoryError: 只让这个程序失败, 工作线程继续执行其他程序
+                    task.result.completeExceptionally(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        }
+    }
+
+    private static class Task {
+        final ExecutionContext context;
+        final long maxInstructions;
+        final CompletableFuture<ExecutionContext> result = new CompletableFuture<>();
+
+        Task(ExecutionContext context, long maxInstructions) {
+            this.context = context;
+            this.maxInstructions = maxInstructions;
+        }
+    }
+}
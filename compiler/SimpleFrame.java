@@ -1,12 +1,17 @@
 package compiler;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.util.List;
 
 public class SimpleFrame extends JFrame {
+    private static final String HEADER = "源代码: \n";
     //打开的文件的名字
     private String fileName;
     //保存的文件的名字
@@ -15,7 +20,10 @@ public class SimpleFrame extends JFrame {
     private JTextArea jTextAreal;
     //右文本区域
     private JTextArea jTextArear;
-    //每个单词名
+    //编译结果
+    private JLabel status;
+    //左文本区域的每次修改都交给它增量地重新编译, 打开文件时重新建立
+    private IncrementalCompiler compiler;
 
     public SimpleFrame() {
         super();
@@ -42,7 +50,7 @@ public class SimpleFrame extends JFrame {
         setTitle("PL0");
         jPanel = (JPanel) getContentPane();
         setResizable(false);
-        jScrollPanel = new JScrollPane(jTextAreal = new JTextArea("源代码: " + "\n", 10, 33));
+        jScrollPanel = new JScrollPane(jTextAreal = new JTextArea(HEADER, 10, 33));
         jScrollPaner = new JScrollPane(jTextArear = new JTextArea("词法分析: " + "\n", 10, 33));
         jTextArear.setTabSize(4);
         jTextArear.setFont(new Font("微软雅黑", Font.PLAIN, 17));
@@ -52,13 +60,15 @@ public class SimpleFrame extends JFrame {
         submit = new JButton("词法分析");
         submit.addActionListener(new start());
         buttonJPanel.add(submit);
+        buttonJPanel.add(status = new JLabel());
         jPanel.add(jScrollPanel, BorderLayout.WEST);
         jPanel.add(jScrollPaner, BorderLayout.EAST);
         jPanel.add(buttonJPanel, BorderLayout.SOUTH);
         jMenuBar = createJMenuBar();
         setJMenuBar(jMenuBar);
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-        jTextAreal.setEditable(false);
+        jTextAreal.getDocument().addDocumentListener(new edit());
+        compiler = new IncrementalCompiler("");
         jTextArear.setEditable(false);
         setVisible(true);
     }
@@ -66,25 +76,75 @@ public class SimpleFrame extends JFrame {
     public class start implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent e) {
+            if (compiler != null && compiler.hasLexErrors()) {
+                // 与原来重新做词法分析时一样, 有词法错误时列出全部错误而不是单词
+                jTextArear.setText("源代码出现错误\n");
+                for (String error : compiler.getErrors()) {
+                    jTextArear.append(error + "\n");
+                }
+            } else if (compiler != null) {
+                jTextArear.setText(String.format("%-24s%-24s%-24s\n", "单词", "类别", "值"));
+                for (Token token : compiler.getTokens()) {
+                    jTextArear.append(String.format("%-24s%-24s%-24s\n", token.name, token.symbol, token.name));
+                }
+            }
+        }
+    }
+
+    // 把左文本区域的修改 (去掉开头的 "源代码: ") 交给增量编译, 只显示编译的结果, 不重新列出单词.
+    // 改动了开头的 "源代码: " 时重新编译全部, 删掉了 "源代码: " 时停止编译, 直到重新打开文件
+    public class edit implements DocumentListener {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
             try {
-                if (fileName != null) {
-                    Lexer lexer = new Lexer(fileName);
-                    lexer.lex();
-                    jTextArear.setText(String.format("%-24s%-24s%-24s\n", "单词", "类别", "值"));
-                    for (int i = 0; i < lexer.getTable().size(); ++i) {
-                        Token token = lexer.getTable().get(i);
-                        jTextArear.append(String.format("%-24s%-24s%-24s\n", token.name, token.symbol, token.name));
-                    }
+                if (compiler == null) {
+                    return;
                 }
-            } catch (FileNotFoundException e1) {
-                jTextArear.setText("文件不存在: " + fileName);
-            } catch (IOException e1) {
-                jTextArear.setText(e1.toString());
-            } catch (LexException e1) {
-                jTextArear.setText("源代码出现错误\n");
-                jTextArear.append(e1.toString());
+                if (e.getOffset() >= HEADER.length()) {
+                    compiler.edit(e.getOffset() - HEADER.length(), 0, e.getDocument().getText(e.getOffset(), e.getLength()));
+                } else {
+                    reload(e);
+                }
+                update();
+            } catch (BadLocationException e1) {
+                e1.printStackTrace();
+            }
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            try {
+                if (compiler == null) {
+                    return;
+                }
+                if (e.getOffset() >= HEADER.length()) {
+                    compiler.edit(e.getOffset() - HEADER.length(), e.getLength(), "");
+                } else {
+                    reload(e);
+                }
+                update();
+            } catch (BadLocationException e1) {
+                e1.printStackTrace();
             }
         }
+
+        private void reload(DocumentEvent e) throws BadLocationException {
+            String text = e.getDocument().getText(0, e.getDocument().getLength());
+            compiler = text.startsWith(HEADER) ? new IncrementalCompiler(text.substring(HEADER.length())) : null;
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    }
+
+    private void update() {
+        if (compiler == null) {
+            status.setText("");
+            return;
+        }
+        List<String> errors = compiler.getErrors();
+        status.setText(errors.isEmpty() ? "编译通过" : "源代码出现错误: " + errors.get(0));
     }
 
     private JMenuBar createJMenuBar() {
@@ -95,7 +155,10 @@ public class SimpleFrame extends JFrame {
         oMenu.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                jTextAreal.setText("源代码: \n");
+                compiler = null;
+                jTextAreal.setText(HEADER);
+                compiler = new IncrementalCompiler("");
+                status.setText("");
                 JFileChooser jFileChooser = new JFileChooser();
                 jFileChooser.setDialogTitle("词法分析: ");
                 int ret = jFileChooser.showOpenDialog(null);
@@ -104,14 +167,16 @@ public class SimpleFrame extends JFrame {
                     FileReader fileReader = null;
                     BufferedReader bufferedReader = null;
                     String line;
+                    StringBuilder source = new StringBuilder();
                     fileName = jFileChooser.getSelectedFile().toString();
                     File infile = new File(fileName);
                     try {
                         fileReader = new FileReader(fileName);
                         bufferedReader = new BufferedReader(fileReader);
                         while ((line = bufferedReader.readLine()) != null) {
-                            jTextAreal.append(line + "\n");
+                            source.append(line).append("\n");
                         }
+                        jTextAreal.append(source.toString());
                     } catch (Exception e1) {
                         e1.printStackTrace();
                     } finally {
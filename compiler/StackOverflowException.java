@@ -0,0 +1,12 @@
+package compiler;
+
+// 运行栈超过上限时抛出, 代替数组越界异常
+public class StackOverflowException extends RuntimeException {
+    public StackOverflowException(int needed, int limit) {
+        super(String.format("Stack overflow: %d slots needed, limit is %d", needed, limit));
+    }
+
+    public StackOverflowException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,72 @@
+package compiler;
+
+import java.util.BitSet;
+
+// 强度削减: 乘以 2 的幂改为左移 (OPR 14). 改写只交换或修改同一表达式中的指令, 不改变代码长度, 跳转地址和行号.
+// 除以 2 的幂对负数的舍入方向与右移不同, 不做改写; odd 在各执行引擎中本身就是测试最低位
+public class StrengthReductionOptimizer implements Pass {
+    private int multiplications;
+
+    public StrengthReductionOptimizer() {
+    }
+
+    // 返回改写的乘法个数
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int[] code = interpreter.code;
+        int length = interpreter.arrayPtr;
+        BitSet targets = new BitSet(length + 1);
+        for (int i = 0; i < length; i++) {
+            if (Opcode.isJump(Opcode.op(code[i * Opcode.WIDTH]))) {
+                targets.set(code[i * Opcode.WIDTH + 1]);
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            int op = Opcode.op(code[i * Opcode.WIDTH]);
+            int argument = code[i * Opcode.WIDTH + 1];
+            if (op == Opcode.LTO && Opcode.level(code[i * Opcode.WIDTH]) == 4 && shift(argument) > 0) {
+                // LTO 4 2^k => LTO 14 k
+                code[i * Opcode.WIDTH] = Opcode.pack(Opcode.LTO, 14);
+                code[i * Opcode.WIDTH + 1] = shift(argument);
+                count++;
+            } else if (op == Opcode.LIT && shift(argument) > 0 && isMultiply(code, length, i + 1)
+                    && !targets.get(i + 1)) {
+                // LIT 2^k; OPR 4 => LIT k; OPR 14
+                code[i * Opcode.WIDTH + 1] = shift(argument);
+                code[(i + 1) * Opcode.WIDTH + 1] = 14;
+                count++;
+            } else if (op == Opcode.LIT && shift(argument) > 0 && i + 1 < length && isLoad(code, i + 1)
+                    && isMultiply(code, length, i + 2) && !targets.get(i + 1) && !targets.get(i + 2)) {
+                // LIT 2^k; LOD l a; OPR 4 => LOD l a; LIT k; OPR 14
+                code[i * Opcode.WIDTH] = code[(i + 1) * Opcode.WIDTH];
+                code[i * Opcode.WIDTH + 1] = code[(i + 1) * Opcode.WIDTH + 1];
+                code[(i + 1) * Opcode.WIDTH] = Opcode.pack(Opcode.LIT, 0);
+                code[(i + 1) * Opcode.WIDTH + 1] = shift(argument);
+                code[(i + 2) * Opcode.WIDTH + 1] = 14;
+                count++;
+            }
+        }
+        multiplications += count;
+        return count;
+    }
+
+    // value 为 2 的 k 次幂 (1 <= k <= 30) 时返回 k, 否则返回 0
+    private static int shift(int value) {
+        return value > 1 && Integer.bitCount(value) == 1 ? Integer.numberOfTrailingZeros(value) : 0;
+    }
+
+    private static boolean isMultiply(int[] code, int length, int index) {
+        return index < length && Opcode.op(code[index * Opcode.WIDTH]) == Opcode.OPR && code[index * Opcode.WIDTH + 1] == 4;
+    }
+
+    private static boolean isLoad(int[] code, int index) {
+        int op = Opcode.op(code[index * Opcode.WIDTH]);
+        return op == Opcode.LOD || op == Opcode.LDG;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("strength reduction: %d multiplications", multiplications);
+    }
+}
@@ -0,0 +1,45 @@
+package compiler;
+
+// 尾调用消除: 过程中紧接着 (可能经过若干 JMP) 就是返回的调用改为 TCL, 被调过程复用当前栈帧,
+// 尾递归因此只占用常数大小的运行栈. 层次差为 0 的调用 (调用自己的内层过程) 的静态链指向当前栈帧, 不能复用.
+// 在内联等按过程体展开代码的优化之后运行
+public class TailCallOptimizer implements Pass {
+    private int calls;
+
+    public TailCallOptimizer() {
+    }
+
+    // 返回改写的调用个数
+    @Override
+    public int optimize(Interpreter interpreter) {
+        int[] code = interpreter.code;
+        Procedures procedures;
+        try {
+            procedures = Procedures.analyze(interpreter);
+        } catch (IllegalStateException error) {
+            return 0;
+        }
+        int count = 0;
+        for (Procedures.Procedure procedure : procedures) {
+            // 主程序的调用层次差总是 0
+            for (int i = procedure.entry + 1; i < procedure.end; i++) {
+                int word = code[i * Opcode.WIDTH];
+                int op = Opcode.op(word);
+                if ((op == Opcode.CAL || op == Opcode.CLI) && Opcode.level(word) > 0
+                        && procedures.follow(i + 1) == procedure.end) {
+                    // TCL 的目标是被调过程入口的 INT, 由它分配栈帧
+                    code[i * Opcode.WIDTH + 1] = procedures.callee(i);
+                    code[i * Opcode.WIDTH] = Opcode.pack(Opcode.TCL, Opcode.level(word));
+                    count++;
+                }
+            }
+        }
+        calls += count;
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("tail calls: %d", calls);
+    }
+}
@@ -0,0 +1,528 @@
+package compiler;
+
+import java.util.Arrays;
+
+// 线索化解释器: 预先把 Pcode 翻译成一串结点, 每个结点持有已解析好的操作数和后继结点,
+// 执行时只需不断调用当前结点的 execute, 不再经过 switch 分派
+public class ThreadedInterpreter {
+    private Node[] nodes;
+    private Program program;
+    private int headroom;
+
+    // 结点在构造后不再改变, 每次执行的状态都在 State 中, 因此可以被多个线程同时执行
+    public ThreadedInterpreter(Program program) {
+        this.program = program;
+        this.headroom = program.headroom();
+        int[] code = program.code();
+        int length = program.length();
+        nodes = new Node[length];
+        for (int i = 0; i < length; i++) {
+            nodes[i] = translate(code[i * Opcode.WIDTH], code[i * Opcode.WIDTH + 1], i + 1);
+        }
+        // 连接后继结点和跳转目标
+        for (int i = 0; i < length; i++) {
+            nodes[i].next = i + 1 < length ? nodes[i + 1] : null;
+            if (nodes[i] instanceof Jump) {
+                ((Jump) nodes[i]).target = nodes[code[i * Opcode.WIDTH + 1]];
+            }
+        }
+    }
+
+    private static Node translate(int word, int argument, int returnAddress) {
+        int level = Opcode.level(word);
+        switch (Opcode.op(word)) {
+            case Opcode.LIT:
+                return new Lit(argument);
+            case Opcode.LOD:
+                return level == 0 ? new LodLocal(argument) : new Lod(level, argument);
+            case Opcode.STO:
+                return level == 0 ? new StoLocal(argument) : new Sto(level, argument);
+            case Opcode.CAL:
+                return new Cal(level, returnAddress);
+            case Opcode.INT:
+                return new Int(argument);
+            case Opcode.JMP:
+                return new Jmp();
+            case Opcode.JPC:
+                return new Jpc();
+            case Opcode.WRT:
+                return new Wrt();
+            case Opcode.RED:
+                return new Red(level, argument);
+            case Opcode.OPR:
+                return operation(argument);
+            case Opcode.INC:
+                return new Inc(level, Opcode.extra(word), argument);
+            case Opcode.STL:
+                return new Stl(level, Opcode.extra(word), argument);
+            case Opcode.LDO:
+                return new Ldo(level, argument, Opcode.extra(word));
+            case Opcode.LTO:
+                return new Lto(level, argument);
+            case Opcode.JNC:
+                return new Jnc(level);
+            case Opcode.JLC:
+                return new Jlc(level, Opcode.extra(word));
+            case Opcode.TCL:
+                return new Tcl(level);
+            case Opcode.CLI:
+                return new Cli(level, Opcode.extra(word), returnAddress);
+            case Opcode.LDG:
+                return new Ldg(argument);
+            case Opcode.STG:
+                return new Stg(argument);
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + Opcode.op(word));
+        }
+    }
+
+    private static Node operation(int operator) {
+        switch (operator) {
+            case 0:
+                return new Ret();
+            case 1:
+                return new Neg();
+            case 2:
+                return new Add();
+            case 6:
+                return new Odd();
+            case 10:
+                return new Less();
+            default:
+                return new Binary(operator);
+        }
+    }
+
+    public void interpret(IntReader in, IntWriter out) {
+        State state = new State();
+        state.stack = new int[program.initialStack()];
+        state.limit = program.getStackLimit();
+        state.headroom = headroom;
+        state.sp = -1;
+        state.bp = 0;
+        state.display = new int[TokenTable.LEVEL_MAX + 1];
+        state.saved = new int[Interpreter.savedSize(state.stack.length)];
+        state.csp = 2;
+        state.nodes = nodes;
+        state.in = in;
+        state.out = out;
+        Node node = nodes[0];
+        while (node != null) {
+            node = node.execute(state);
+        }
+    }
+
+    // 调用时更新 display, 被覆盖的项和调用者的层次保存在 saved 中
+    private static void enter(State s, int level) {
+        int lev = s.lev - level + 1;
+        s.saved[s.csp++] = s.display[lev];
+        s.saved[s.csp++] = s.lev;
+        s.display[lev] = s.bp;
+        s.lev = lev;
+    }
+
+    // 分配栈帧后检查剩余空间, 不够时扩容
+    private static void reserve(State s) {
+        if (s.sp + s.headroom >= s.stack.length) {
+            s.stack = Interpreter.grow(s.stack, s.sp + s.headroom + 1, s.limit);
+            s.saved = Arrays.copyOf(s.saved, Interpreter.savedSize(s.stack.length));
+        }
+    }
+
+    private static class State {
+        int[] stack;
+        int sp, bp, limit, headroom;
+        // 与 Interpreter 相同的 display 寄存器
+        int[] display, saved;
+        int lev, csp;
+        Node[] nodes;
+        IntReader in;
+        IntWriter out;
+    }
+
+    private static abstract class Node {
+        Node next;
+
+        // 执行当前结点, 返回下一个要执行的结点, 返回 null 表示程序结束
+        abstract Node execute(State s);
+    }
+
+    private static abstract class Jump extends Node {
+        Node target;
+    }
+
+    private static class Lit extends Node {
+        private final int value;
+
+        Lit(int value) {
+            this.value = value;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[++s.sp] = value;
+            return next;
+        }
+    }
+
+    private static class LodLocal extends Node {
+        private final int address;
+
+        LodLocal(int address) {
+            this.address = address;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[++s.sp] = s.stack[s.bp + address];
+            return next;
+        }
+    }
+
+    private static class Lod extends Node {
+        private final int level, address;
+
+        Lod(int level, int address) {
+            this.level = level;
+            this.address = address;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[++s.sp] = s.stack[s.display[s.lev - level] + address];
+            return next;
+        }
+    }
+
+    private static class Ldg extends Node {
+        private final int address;
+
+        Ldg(int address) {
+            this.address = address;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[++s.sp] = s.stack[address];
+            return next;
+        }
+    }
+
+    private static class Stg extends Node {
+        private final int address;
+
+        Stg(int address) {
+            this.address = address;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[address] = s.stack[s.sp--];
+            return next;
+        }
+    }
+
+    private static class StoLocal extends Node {
+        private final int address;
+
+        StoLocal(int address) {
+            this.address = address;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[s.bp + address] = s.stack[s.sp--];
+            return next;
+        }
+    }
+
+    private static class Sto extends Node {
+        private final int level, address;
+
+        Sto(int level, int address) {
+            this.level = level;
+            this.address = address;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[s.display[s.lev - level] + address] = s.stack[s.sp--];
+            return next;
+        }
+    }
+
+    private static class Cal extends Jump {
+        private final int level, returnAddress;
+
+        Cal(int level, int returnAddress) {
+            this.level = level;
+            this.returnAddress = returnAddress;
+        }
+
+        @Override
+        Node execute(State s) {
+            int[] stack = s.stack;
+            stack[s.sp + 1] = s.display[s.lev - level];
+            stack[s.sp + 2] = s.bp;
+            stack[s.sp + 3] = returnAddress;
+            s.bp = s.sp + 1;
+            enter(s, level);
+            return target;
+        }
+    }
+
+    private static class Cli extends Jump {
+        private final int level, size, returnAddress;
+
+        Cli(int level, int size, int returnAddress) {
+            this.level = level;
+            this.size = size;
+            this.returnAddress = returnAddress;
+        }
+
+        @Override
+        Node execute(State s) {
+            int[] stack = s.stack;
+            stack[s.sp + 1] = s.display[s.lev - level];
+            stack[s.sp + 2] = s.bp;
+            stack[s.sp + 3] = returnAddress;
+            s.bp = s.sp + 1;
+            enter(s, level);
+            s.sp += size;
+            reserve(s);
+            return target;
+        }
+    }
+
+    // 在当前栈帧上进入被调过程, 与 ExecutionContext 中的 TCL 相同
+    private static class Tcl extends Jump {
+        private final int level;
+
+        Tcl(int level) {
+            this.level = level;
+        }
+
+        @Override
+        Node execute(State s) {
+            int callee = s.lev - level + 1;
+            s.stack[s.bp] = s.display[s.lev - level];
+            s.display[s.lev] = s.saved[s.csp - 2];
+            s.saved[s.csp - 2] = s.display[callee];
+            s.display[callee] = s.bp;
+            s.lev = callee;
+            s.sp = s.bp - 1;
+            return target;
+        }
+    }
+
+    private static class Ret extends Node {
+        @Override
+        Node execute(State s) {
+            s.sp = s.bp - 1;
+            s.bp = s.stack[s.sp + 2];
+            int pc = s.stack[s.sp + 3];
+            s.display[s.lev] = s.saved[s.csp - 2];
+            s.lev = s.saved[s.csp - 1];
+            s.csp -= 2;
+            return pc == 0 ? null : s.nodes[pc];
+        }
+    }
+
+    private static class Int extends Node {
+        private final int size;
+
+        Int(int size) {
+            this.size = size;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.sp += size;
+            reserve(s);
+            return next;
+        }
+    }
+
+    private static class Jmp extends Jump {
+        @Override
+        Node execute(State s) {
+            return target;
+        }
+    }
+
+    private static class Jpc extends Jump {
+        @Override
+        Node execute(State s) {
+            return s.stack[s.sp--] == 0 ? target : next;
+        }
+    }
+
+    private static class Wrt extends Node {
+        @Override
+        Node execute(State s) {
+            s.out.write(s.stack[s.sp--]);
+            return next;
+        }
+    }
+
+    private static class Red extends Node {
+        private final int level, address;
+
+        Red(int level, int address) {
+            this.level = level;
+            this.address = address;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[s.display[s.lev - level] + address] = s.in.nextInt();
+            return next;
+        }
+    }
+
+    private static class Neg extends Node {
+        @Override
+        Node execute(State s) {
+            s.stack[s.sp] = -s.stack[s.sp];
+            return next;
+        }
+    }
+
+    private static class Odd extends Node {
+        @Override
+        Node execute(State s) {
+            s.stack[s.sp] &= 1;
+            return next;
+        }
+    }
+
+    private static class Add extends Node {
+        @Override
+        Node execute(State s) {
+            int sp = --s.sp;
+            s.stack[sp] += s.stack[sp + 1];
+            return next;
+        }
+    }
+
+    private static class Less extends Node {
+        @Override
+        Node execute(State s) {
+            int sp = --s.sp;
+            s.stack[sp] = s.stack[sp] < s.stack[sp + 1] ? 1 : 0;
+            return next;
+        }
+    }
+
+    private static class Binary extends Node {
+        private final int operator;
+
+        Binary(int operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        Node execute(State s) {
+            int sp = --s.sp;
+            s.stack[sp] = Interpreter.operate(operator, s.stack[sp], s.stack[sp + 1]);
+            return next;
+        }
+    }
+
+    private static class Inc extends Node {
+        private final int level, address, value;
+
+        Inc(int level, int address, int value) {
+            this.level = level;
+            this.address = address;
+            this.value = value;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[s.display[s.lev - level] + address] += value;
+            return next;
+        }
+    }
+
+    private static class Stl extends Node {
+        private final int level, address, value;
+
+        Stl(int level, int address, int value) {
+            this.level = level;
+            this.address = address;
+            this.value = value;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[s.display[s.lev - level] + address] = value;
+            return next;
+        }
+    }
+
+    private static class Ldo extends Node {
+        private final int level, address, operator;
+
+        Ldo(int level, int address, int operator) {
+            this.level = level;
+            this.address = address;
+            this.operator = operator;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[s.sp] = Interpreter.operate(operator, s.stack[s.sp], s.stack[s.display[s.lev - level] + address]);
+            return next;
+        }
+    }
+
+    private static class Lto extends Node {
+        private final int operator, value;
+
+        Lto(int operator, int value) {
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        Node execute(State s) {
+            s.stack[s.sp] = Interpreter.operate(operator, s.stack[s.sp], value);
+            return next;
+        }
+    }
+
+    private static class Jnc extends Jump {
+        private final int operator;
+
+        Jnc(int operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        Node execute(State s) {
+            boolean result;
+            if (operator == 6) {
+                result = (s.stack[s.sp--] & 1) != 0;
+            } else {
+                s.sp -= 2;
+                result = Interpreter.operate(operator, s.stack[s.sp + 1], s.stack[s.sp + 2]) != 0;
+            }
+            return result ? next : target;
+        }
+    }
+
+    private static class Jlc extends Jump {
+        private final int operator, value;
+
+        Jlc(int operator, int value) {
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        Node execute(State s) {
+            return Interpreter.operate(operator, s.stack[s.sp--], value) != 0 ? next : target;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package compiler;
+
+import java.lang.invoke.MethodHandle;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// 分层执行: 程序先由解释循环执行, 同时统计每个过程被调用的次数和每个循环头经过回边的次数.
+// 超过阈值后在后台线程中把过程连同它调用的过程编译成 JVM 字节码, 解释器在下一次调用时直接进入编译后的方法;
+// 热循环所在的栈帧在下一次经过回边时从循环头进入编译后的代码 (栈上替换), 过程返回后回到解释器执行 OPR 0.
+// 编译后的代码和解释器共用运行栈和 display, 栈帧布局相同, 所以可以在调用和回边处随时切换.
+// 短小的程序达不到阈值, 不需要付出编译的代价
+public class TieredCompiler {
+    public static final int CALL_THRESHOLD = 1000, LOOP_THRESHOLD = 10000;
+    // 所有程序共用一个后台编译线程
+    private static final ExecutorService COMPILER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pl0-tier");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Program program;
+    private final Procedures procedures;
+    // 调用指令的目标地址对应的过程入口
+    private final int[] entries;
+    // 按地址记录过程入口的调用次数和循环头的回边次数. 多个线程同时执行时计数可能丢失, 只影响编译的时机
+    private final int[] counts;
+    // 已经提交编译 (或随其他过程一起编译) 的地址
+    private final boolean[] requested;
+    // 过程入口和循环头对应的编译后的方法
+    private final AtomicReferenceArray<MethodHandle> compiled;
+    // 只在编译线程中使用
+    private JitCompiler jit;
+
+    public TieredCompiler(Program program) {
+        int[] code = program.code();
+        this.program = program;
+        this.procedures = Procedures.analyze(program);
+        this.entries = new int[program.length()];
+        this.counts = new int[program.length()];
+        this.requested = new boolean[program.length()];
+        this.compiled = new AtomicReferenceArray<>(program.length());
+        for (int i = 0; i < program.length(); i++) {
+            if (procedures.isCall(i)) {
+                int target = code[i * Opcode.WIDTH + 1];
+                entries[Opcode.op(code[i * Opcode.WIDTH]) == Opcode.CLI ? target - 1 : target] = procedures.callee(i);
+            }
+        }
+    }
+
+    // 解释器执行调用指令时调用, target 为 CAL/TCL 的目标或 CLI 跳过的 INT 的地址.
+    // 返回被调过程编译后的方法, 尚未编译时返回 null
+    MethodHandle call(int target) {
+        int entry = entries[target];
+        if (++counts[entry] >= CALL_THRESHOLD && !requested[entry]) {
+            request(entry, false);
+        }
+        return compiled.get(entry);
+    }
+
+    // 解释器经过回边跳到循环头 header 时调用, frame 为当前栈帧已经使用的单元数.
+    // 返回从循环头进入的方法; 尚未编译, 或操作数栈不空 (栈帧之外还有值) 时返回 null
+    MethodHandle loop(int header, int frame) {
+        if (++counts[header] >= LOOP_THRESHOLD && !requested[header]) {
+            request(header, true);
+        }
+        MethodHandle handle = compiled.get(header);
+        return handle != null && procedures.at(header).size == frame ? handle : null;
+    }
+
+    // 从循环头进入的方法返回后, 解释器继续执行的返回指令
+    int exit(int header) {
+        return procedures.at(header).end;
+    }
+
+    private synchronized void request(int address, boolean loop) {
+        if (requested[address]) {
+            return;
+        }
+        requested[address] = true;
+        Procedures.Procedure procedure = loop ? procedures.at(address) : procedures.get(address);
+        if (procedure != null && !recursive(procedure, new HashSet<>(), new HashSet<>())) {
+            COMPILER.execute(() -> compile(procedure.entry, loop ? address : -1));
+        }
+    }
+
+    // 从 procedure 出发能调用到的过程中有递归时返回 true. 编译后的过程调用使用 JVM 调用栈, 递归深度受线程栈的限制,
+    // 这样的过程留在解释器中执行; 调用自身的尾调用被编译成跳转, 不算递归
+    private boolean recursive(Procedures.Procedure procedure, Set<Procedures.Procedure> active, Set<Procedures.Procedure> done) {
+        if (done.contains(procedure)) {
+            return false;
+        }
+        if (!active.add(procedure)) {
+            return true;
+        }
+        int[] code = program.code();
+        for (int i = procedure.entry; i < procedure.end; i++) {
+            if (!procedures.isCall(i)) {
+                continue;
+            }
+            Procedures.Procedure callee = procedures.get(procedures.callee(i));
+            boolean loop = Opcode.op(code[i * Opcode.WIDTH]) == Opcode.TCL && callee == procedure;
+            if (!loop && recursive(callee, active, done)) {
+                return true;
+            }
+        }
+        active.remove(procedure);
+        done.add(procedure);
+        return false;
+    }
+
+    private void compile(int entry, int header) {
+        if (jit == null) {
+            jit = new JitCompiler(program);
+        }
+        Map<Integer, MethodHandle> handles;
+        try {
+            handles = jit.compile(entry, header);
+        } catch (UnsupportedOperationException error) {
+            // 无法编译的过程继续解释执行
+            program.fallback("TIERED: " + error.getMessage());
+            return;
+        }
+        synchronized (this) {
+            for (Map.Entry<Integer, MethodHandle> handle : handles.entrySet()) {
+                requested[handle.getKey()] = true;
+                compiled.compareAndSet(handle.getKey(), null, handle.getValue());
+            }
+        }
+    }
+
+    // 在解释器的运行栈上执行编译后的方法, 返回执行后的运行栈 (可能已经扩大)
+    static int[] invoke(MethodHandle handle, JitRuntime runtime, int[] stack, int bp) {
+        runtime.stack = stack;
+        try {
+            handle.invokeExact(runtime, bp);
+        } catch (StackOverflowError e) {
+            throw new StackOverflowException("Stack overflow: recursion too deep for the JVM thread stack");
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        return runtime.stack;
+    }
+}
@@ -1,5 +1,6 @@
 package compiler;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class Token {
@@ -22,10 +23,59 @@ public class Token {
         put("until", Symbol.Until);
     }};
 
+    // 保留字在 Interner 中的编号即在这个数组中的下标
+    static final String[] KEYWORDS = MAP.keySet().toArray(new String[0]);
+    private static final Symbol[] KEYWORD_SYMBOLS = new Symbol[KEYWORDS.length];
+
+    // 保留字的完美散列表: 以前两个字符和长度计算下标, 16 个保留字各占一个位置, 其余位置为 -1
+    private static final int[] KEYWORD_HASH = new int[32];
+
+    static {
+        Arrays.fill(KEYWORD_HASH, -1);
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            KEYWORD_SYMBOLS[i] = MAP.get(KEYWORDS[i]);
+            char[] chars = KEYWORDS[i].toCharArray();
+            int hash = keywordHash(chars, 0, chars.length);
+            if (KEYWORD_HASH[hash] != -1) {
+                throw new IllegalStateException("Keyword hash collision: " + KEYWORDS[i]);
+            }
+            KEYWORD_HASH[hash] = i;
+        }
+    }
+
+    private static int keywordHash(char[] chars, int offset, int length) {
+        return (chars[offset] + 9 * chars[offset + 1] + length) & 31;
+    }
+
+    // 在源程序的字符数组上查找保留字, 返回它在 KEYWORDS 中的下标, 不是保留字时返回 -1
+    static int keyword(char[] chars, int offset, int length) {
+        if (length < 2 || length > 9) {
+            return -1;
+        }
+        int index = KEYWORD_HASH[keywordHash(chars, offset, length)];
+        if (index < 0) {
+            return -1;
+        }
+        String keyword = KEYWORDS[index];
+        if (keyword.length() != length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            if (keyword.charAt(i) != chars[offset + i]) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
     public static Symbol getKeywordSymbol(String keyword) {
         return MAP.getOrDefault(keyword, Symbol.None);
     }
 
+    public static Symbol getKeywordSymbol(int id) {
+        return id >= 0 && id < KEYWORD_SYMBOLS.length ? KEYWORD_SYMBOLS[id] : Symbol.None;
+    }
+
     public static Type getSymbolType(Symbol symbol) {
         switch (symbol) {
             case Var:
@@ -41,10 +91,17 @@ public class Token {
 
     public Symbol symbol;
     public String name;
+    // 标识符和保留字在 Interner 中的编号, 其他单词为 -1
+    public int id;
     public int line;
 
     public Token(String name, Symbol symbol, int line) {
+        this(name, -1, symbol, line);
+    }
+
+    public Token(String name, int id, Symbol symbol, int line) {
         this.name = name;
+        this.id = id;
         this.symbol = symbol;
         this.line = line;
     }
@@ -16,6 +16,30 @@ public class TokenTable {
         tablePtr = 0;
     }
 
+    // 增量编译时恢复某一处可见的各项
+    TokenTable(Item[] items) {
+        this();
+        System.arraycopy(items, 0, table, 1, items.length);
+        tablePtr = items.length;
+    }
+
+    // 复制当前可见的各项 (不含第 0 项), 之后对表的修改不影响复制的结果
+    Item[] snapshot() {
+        Item[] items = new Item[tablePtr];
+        for (int i = 1; i <= tablePtr; i++) {
+            Item item = get(i), copy = new Item();
+            copy.name = item.name;
+            copy.id = item.id;
+            copy.type = item.type;
+            copy.value = item.value;
+            copy.level = item.level;
+            copy.address = item.address;
+            copy.size = item.size;
+            items[i - 1] = copy;
+        }
+        return items;
+    }
+
     public Item get(int index) {
         if (table[index] == null) {
             table[index] = new Item();
@@ -23,9 +47,10 @@ public class TokenTable {
         return table[index];
     }
 
-    public int index(String id) {
+    // id 为标识符在 Interner 中的编号, 从最近加入的项向前查找
+    public int index(int id) {
         for (int i = tablePtr; i > 0; i--) {
-            if (get(i).name.equals(id)) {
+            if (get(i).id == id) {
                 return i;
             }
         }
@@ -43,6 +68,7 @@ public class TokenTable {
     public void addConstant(Token token, int level, int value) throws ParseException{
         Item item = new Item();
         item.name = token.name;
+        item.id = token.id;
         item.value = value;
         item.type = Type.Constant;
         item.level = level;
@@ -53,6 +79,7 @@ public class TokenTable {
     public void addVariable(Token token, int level, int address) throws ParseException{
         Item item = new Item();
         item.name = token.name;
+        item.id = token.id;
         item.level = level;
         item.address = address;
         item.type = Type.Variable;
@@ -62,6 +89,7 @@ public class TokenTable {
     public void addProcedure(Token token, int level) throws ParseException{
         Item item = new Item();
         item.name = token.name;
+        item.id = token.id;
         item.level = level;
         item.type = Type.Procedure;
         add(item);
@@ -0,0 +1,223 @@
+package compiler;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+// 检查代码是否合法: 操作码和运算编号有效, 能恢复出过程结构, 过程内的跳转不出过程,
+// 各条指令执行前的操作数栈深度唯一且足够, 语句之间 (返回时) 栈为空, 变量的层次差和地址都在对应栈帧之内.
+// 只检查从主程序出发能调用到的过程, 发现错误时抛出 IllegalStateException
+final class Verifier {
+    private final int[] code;
+    private final int length;
+    private final Procedures procedures;
+
+    private Verifier(Interpreter interpreter) {
+        this.code = interpreter.code;
+        this.length = interpreter.arrayPtr;
+        this.procedures = Procedures.analyze(interpreter);
+    }
+
+    static void verify(Interpreter interpreter) {
+        Verifier verifier = new Verifier(interpreter);
+        for (int i = 0; i < verifier.length; i++) {
+            verifier.checkInstruction(i);
+        }
+        for (Procedures.Procedure procedure : verifier.procedures) {
+            verifier.checkProcedure(procedure);
+        }
+    }
+
+    private void checkInstruction(int i) {
+        int word = code[i * Opcode.WIDTH];
+        int op = Opcode.op(word);
+        if (op >= Code.values().length) {
+            fail(i, "unknown opcode " + op);
+        }
+        if (Opcode.isJump(op)) {
+            int target = code[i * Opcode.WIDTH + 1];
+            if (target < 0 || target >= length) {
+                fail(i, "jump target " + target + " out of range");
+            }
+        }
+        boolean valid;
+        switch (op) {
+            case Opcode.OPR:
+                int operator = code[i * Opcode.WIDTH + 1];
+                valid = operator >= 0 && operator <= 6 || isBinary(operator);
+                break;
+            case Opcode.LDO:
+                valid = isBinary(Opcode.extra(word));
+                break;
+            case Opcode.LTO:
+                valid = isBinary(Opcode.level(word));
+                break;
+            case Opcode.JNC:
+                valid = isRelation(Opcode.level(word)) || Opcode.level(word) == 6;
+                break;
+            case Opcode.JLC:
+                valid = isRelation(Opcode.level(word));
+                break;
+            default:
+                valid = true;
+        }
+        if (!valid) {
+            fail(i, "invalid operator");
+        }
+    }
+
+    private void checkProcedure(Procedures.Procedure procedure) {
+        // 每条指令执行前的栈深度, -1 表示尚未到达
+        int[] depths = new int[procedure.end - procedure.entry + 1];
+        Arrays.fill(depths, -1);
+        Deque<Integer> work = new ArrayDeque<>();
+        depths[0] = 0;
+        work.push(procedure.entry);
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            int word = code[i * Opcode.WIDTH];
+            int argument = code[i * Opcode.WIDTH + 1];
+            int op = Opcode.op(word);
+            int depth = depths[i - procedure.entry];
+            if (op == Opcode.INT && i != procedure.entry) {
+                fail(i, "INT inside procedure body");
+            }
+            checkVariable(procedure, i);
+            int pops = pops(word, argument), pushes = pushes(word);
+            if (depth < pops) {
+                fail(i, "stack underflow");
+            }
+            int next = depth - pops + pushes;
+            if (op == Opcode.OPR && argument == 0) {
+                if (depth != 0) {
+                    fail(i, "stack not empty on return");
+                }
+                continue;
+            }
+            if (op == Opcode.TCL) {
+                // 尾调用复用栈帧, 不会回到下一条指令
+                checkCall(procedure, i);
+                if (depth != 0 || Opcode.level(word) == 0) {
+                    fail(i, "invalid tail call");
+                }
+                continue;
+            }
+            if (op == Opcode.CAL || op == Opcode.CLI) {
+                checkCall(procedure, i);
+            } else if (Opcode.isJump(op)) {
+                flow(procedure, i, argument, next, depths, work);
+            }
+            if (op != Opcode.JMP) {
+                flow(procedure, i, i + 1, next, depths, work);
+            }
+        }
+    }
+
+    private void flow(Procedures.Procedure procedure, int from, int to, int depth, int[] depths, Deque<Integer> work) {
+        if (!procedure.contains(to)) {
+            fail(from, "control leaves " + procedure);
+        }
+        int known = depths[to - procedure.entry];
+        if (known < 0) {
+            depths[to - procedure.entry] = depth;
+            work.push(to);
+        } else if (known != depth) {
+            fail(to, "stack depth " + known + " and " + depth + " meet");
+        }
+    }
+
+    private void checkCall(Procedures.Procedure procedure, int i) {
+        int word = code[i * Opcode.WIDTH];
+        if (Opcode.level(word) > procedure.level) {
+            fail(i, "call level out of range");
+        }
+        Procedures.Procedure callee = procedures.get(procedures.callee(i));
+        if (callee == null) {
+            fail(i, "call to unknown procedure");
+        }
+        if (Opcode.op(word) == Opcode.CLI && Opcode.extra(word) != callee.size) {
+            fail(i, "CLI frame size " + Opcode.extra(word) + " differs from " + callee.size);
+        }
+    }
+
+    // 变量的层次差不超过当前层次, 地址在对应栈帧的变量区内
+    private void checkVariable(Procedures.Procedure procedure, int i) {
+        int word = code[i * Opcode.WIDTH];
+        int argument = code[i * Opcode.WIDTH + 1];
+        int level, address;
+        switch (Opcode.op(word)) {
+            case Opcode.LOD:
+            case Opcode.STO:
+            case Opcode.RED:
+            case Opcode.LDO:
+                level = procedure.level - Opcode.level(word);
+                address = argument;
+                break;
+            case Opcode.INC:
+            case Opcode.STL:
+                level = procedure.level - Opcode.level(word);
+                address = Opcode.extra(word);
+                break;
+            case Opcode.LDG:
+            case Opcode.STG:
+                level = 0;
+                address = argument;
+                break;
+            default:
+                return;
+        }
+        if (level < 0) {
+            fail(i, "variable level out of range");
+        }
+        Procedures.Procedure owner = procedure.ancestor(level);
+        if (address < 3 || address >= owner.size) {
+            fail(i, "variable address " + address + " outside frame of " + owner);
+        }
+    }
+
+    // 指令从操作数栈上取走的值的个数
+    private static int pops(int word, int argument) {
+        switch (Opcode.op(word)) {
+            case Opcode.STO:
+            case Opcode.STG:
+            case Opcode.JPC:
+            case Opcode.WRT:
+            case Opcode.LDO:
+            case Opcode.LTO:
+            case Opcode.JLC:
+                return 1;
+            case Opcode.JNC:
+                return Opcode.level(word) == 6 ? 1 : 2;
+            case Opcode.OPR:
+                return argument == 0 ? 0 : argument == 1 || argument == 6 ? 1 : 2;
+            default:
+                return 0;
+        }
+    }
+
+    private static int pushes(int word) {
+        switch (Opcode.op(word)) {
+            case Opcode.LIT:
+            case Opcode.LOD:
+            case Opcode.LDG:
+            case Opcode.LDO:
+            case Opcode.LTO:
+            case Opcode.OPR:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean isRelation(int operator) {
+        return operator >= 8 && operator <= 13;
+    }
+
+    private static boolean isBinary(int operator) {
+        return operator >= 2 && operator <= 5 || isRelation(operator) || operator == 14;
+    }
+
+    private static void fail(int index, String message) {
+        throw new IllegalStateException(String.format("%d: %s", index, message));
+    }
+}
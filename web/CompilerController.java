@@ -4,40 +4,115 @@ import compiler.*;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 @RestController
 public class CompilerController {
-    private Parser parser;
-    private Lexer lexer;
-    private Interpreter interpreter;
+    // 每次运行最多执行的指令数, 防止死循环的程序一直占用工作线程
+    private static final long MAX_INSTRUCTIONS = 100_000_000L;
+    // 等待运行结果的最长时间, 工作线程都忙时请求也不会一直等下去
+    private static final long MAX_SECONDS = 60;
+    private final Scheduler scheduler = new Scheduler(Runtime.getRuntime().availableProcessors());
+    // 最近一次编译 (或修改) 后的程序, 有错误时为 null, 这样不会运行与当前源程序不符的旧程序.
+    // 不可变, 各个请求各自创建运行上下文
+    private volatile Program program;
+    // 最近一次提交编译的源程序, 收到第一次修改时才建立增量编译的状态. 两者只在持有 this 的锁时访问
+    private String source;
+    private IncrementalCompiler editor;
+    // 修改后还没有更新 program
+    private boolean edited;
     @PostMapping ("/compile")
     public CompileOutput compile(@RequestBody String code) {
         // 返回编译结果
         CompileOutput output = new CompileOutput();
         System.out.println(code);
+        synchronized (this) {
+            source = code;
+            editor = null;
+            edited = false;
+        }
         try {
-            lexer = new Lexer(new BufferedReader(new StringReader(code)));
-            interpreter = new Interpreter();
-            parser = new Parser(lexer, interpreter, "pl0.tmp");
-            lexer.lex();
+            Lexer lexer = new Lexer(code.toCharArray());
+            Interpreter interpreter = new Interpreter();
+            Parser parser = new Parser(lexer, interpreter, "pl0.tmp");
             parser.nextToken();
             parser.parse();
-            output.setInstructions(interpreter.getInstructions().stream().map(Instruction::toString).collect(Collectors.toList()));
+            Program compiled = interpreter.toProgram();
+            output.setInstructions(compiled.getInstructions().stream().map(Instruction::toString).collect(Collectors.toList()));
+            program = compiled;
         } catch (IOException error) {
             System.out.println(error.getMessage());
+            program = null;
         } catch (CompileException error) {
             output.setErrors(error.getErrors());
+            program = null;
         }
         return output;
     }
 
+    // 在最近一次编译的源程序上做一次修改, 只重新扫描和分析受影响的部分, 返回修改后的错误.
+    // 指令可能很多, 不随每次修改返回
+    @PostMapping ("/edit")
+    public synchronized CompileOutput edit(@RequestBody EditInput edit) {
+        CompileOutput output = new CompileOutput();
+        if (source == null) {
+            output.setErrors(Collections.singletonList("No program compiled"));
+            return output;
+        }
+        if (editor == null) {
+            editor = new IncrementalCompiler(source);
+        }
+        try {
+            editor.edit(edit.getOffset(), edit.getRemoved(), edit.getText() == null ? "" : edit.getText());
+        } catch (IllegalArgumentException error) {
+            output.setErrors(Collections.singletonList(error.getMessage()));
+            return output;
+        }
+        edited = true;
+        output.setErrors(new ArrayList<>(editor.getErrors()));
+        return output;
+    }
+
     @PostMapping ("/run")
     public RunOutput run(@RequestBody String input) {
         StringWriter res = new StringWriter();
-        interpreter.interpret(new BufferedReader(new StringReader(input)), new BufferedWriter(res));
         RunOutput output = new RunOutput();
-        output.setOutput(res.toString());
+        boolean compiled;
+        synchronized (this) {
+            // 运行修改后的程序, 修改后有错误时不运行
+            if (edited) {
+                this.program = editor.getProgram();
+            }
+            edited = false;
+            compiled = source != null;
+        }
+        Program program = this.program;
+        if (program == null) {
+            output.setOutput(compiled ? "Program has compile errors" : "No program compiled");
+            return output;
+        }
+        ExecutionContext context = program.newContext(new BufferedReader(new StringReader(input)), new BufferedWriter(res));
+        CompletableFuture<ExecutionContext> result = scheduler.submit(context, MAX_INSTRUCTIONS);
+        try {
+            result.get(MAX_SECONDS, TimeUnit.SECONDS);
+            output.setOutput(res.toString());
+        } catch (TimeoutException error) {
+            // 取消后调度器不再执行这个程序
+            result.cancel(false);
+            output.setOutput(res.toString() + "Time limit " + MAX_SECONDS + "s exceeded");
+        } catch (ExecutionException error) {
+            // 出错前的输出仍然返回
+            output.setOutput(res.toString() + error.getCause());
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            output.setOutput(res.toString());
+        }
         return output;
     }
 }
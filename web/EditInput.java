@@ -0,0 +1,32 @@
+package web;
+
+// 编辑器中的一次修改: 把从 offset 开始的 removed 个字符替换为 text
+public class EditInput {
+    private int offset;
+    private int removed;
+    private String text;
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(int removed) {
+        this.removed = removed;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+}